@@ -19,7 +19,11 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
 
 /**
  * Configuration for the migration app that contains details of the S3 bucket and Bitbucket home.
@@ -33,6 +37,57 @@ public class AppConfiguration {
     private static final String PROP_S3_SECRET_KET = "s3.secret-key";
     private static final String PROP_S3_ENDPOINT_OVERRIDE = "s3.endpoint-override";
     private static final String PROP_REVERSE_MIGRATION = "reverse-migration";
+    private static final String PROP_COPY_MIGRATION = "copy-migration";
+    private static final String PROP_TARGET_S3_BUCKET = "target.s3.bucket";
+    private static final String PROP_TARGET_S3_REGION = "target.s3.region";
+    private static final String PROP_TARGET_S3_ACCESS_KEY = "target.s3.access-key";
+    private static final String PROP_TARGET_S3_SECRET_KEY = "target.s3.secret-key";
+    private static final String PROP_TARGET_S3_ENDPOINT_OVERRIDE = "target.s3.endpoint-override";
+    private static final String PROP_REPLICAS = "replicas";
+    private static final String PROP_REPLICA_PREFIX = "replica.";
+    private static final String PROP_REPLICA_S3_BUCKET = ".s3.bucket";
+    private static final String PROP_REPLICA_S3_REGION = ".s3.region";
+    private static final String PROP_REPLICA_S3_ACCESS_KEY = ".s3.access-key";
+    private static final String PROP_REPLICA_S3_SECRET_KEY = ".s3.secret-key";
+    private static final String PROP_REPLICA_S3_ENDPOINT_OVERRIDE = ".s3.endpoint-override";
+    private static final String PROP_REPLICA_THREADS = ".threads";
+    private static final String PROP_THREADS = "threads";
+    private static final String PROP_MAX_CONNECTIONS = "max-connections";
+    private static final String PROP_MULTIPART_PART_SIZE = "multipart.part-size";
+    private static final String PROP_MULTIPART_THRESHOLD = "multipart.threshold";
+    private static final String PROP_CALIBRATE = "calibrate";
+    private static final String PROP_CALIBRATE_MAX_THREADS = "calibrate.max-threads";
+    private static final String PROP_CALIBRATE_OUTPUT_FILE = "calibrate.output-file";
+    private static final String PROP_CALIBRATION_FILE = "calibration.file";
+    private static final String PROP_VERIFY_LOCAL = "verify-local";
+    private static final String PROP_DIGEST_CACHE_FILE = "digest-cache.file";
+    private static final String PROP_DURABLE_DOWNLOADS = "durable-downloads";
+    private static final String PROP_DURABLE_DOWNLOADS_BATCH_SIZE = "durable-downloads.batch-size";
+    private static final String PROP_PRUNE = "prune";
+    private static final String PROP_PRUNE_DRY_RUN = "prune.dry-run";
+    private static final String PROP_PRUNE_KEEP_LIST = "prune.keep-list";
+    private static final String PROP_PRUNE_REPORT_FILE = "prune.report-file";
+    private static final String PROP_TRANSFER_LOG_FILE = "transfer-log.file";
+    private static final String PROP_TRANSFER_LOG_MAX_FILE_SIZE = "transfer-log.max-file-size";
+    private static final String PROP_TRANSFER_LOG_MAX_FILES = "transfer-log.max-files";
+
+    private static final int DEFAULT_THREADS = 16;
+    /**
+     * The Apache HTTP client's default connection pool size. The pool is only grown beyond this by default to make
+     * room for the configured number of threads.
+     */
+    private static final int DEFAULT_MAX_CONNECTIONS = 50;
+    private static final long DEFAULT_MULTIPART_PART_SIZE = 64L * 1024 * 1024;
+    /**
+     * Objects up to this size are uploaded with a single {@code PutObject} request, which is the largest S3 accepts.
+     * This lets S3 verify the whole object's SHA256 checksum, which is also its OID.
+     */
+    private static final long DEFAULT_MULTIPART_THRESHOLD = 5L * 1024 * 1024 * 1024;
+    private static final int DEFAULT_CALIBRATE_MAX_THREADS = 64;
+    private static final String DEFAULT_CALIBRATE_OUTPUT_FILE = "calibration.properties";
+    private static final int DEFAULT_DURABLE_DOWNLOADS_BATCH_SIZE = 256;
+    private static final long DEFAULT_TRANSFER_LOG_MAX_FILE_SIZE = 100L * 1024 * 1024;
+    private static final int DEFAULT_TRANSFER_LOG_MAX_FILES = 10;
 
     private final String homeDir;
     private final String bucket;
@@ -41,11 +96,37 @@ public class AppConfiguration {
     private final String secretKey;
     private final String endpointOverride;
     private final boolean reverseMigration;
+    private final boolean copyMigration;
+    private final String targetBucket;
+    private final String targetRegion;
+    private final String targetAccessKey;
+    private final String targetSecretKey;
+    private final String targetEndpointOverride;
+    private final List<Replica> replicas;
+    private final int threads;
+    private final int maxConnections;
+    private final long multipartPartSize;
+    private final long multipartThreshold;
+    private final boolean calibrate;
+    private final int calibrateMaxThreads;
+    private final String calibrateOutputFile;
+    private final boolean verifyLocal;
+    private final String digestCacheFile;
+    private final boolean durableDownloads;
+    private final int durableDownloadsBatchSize;
+    private final boolean prune;
+    private final boolean pruneDryRun;
+    private final String pruneKeepList;
+    private final String pruneReportFile;
+    private final String transferLogFile;
+    private final long transferLogMaxFileSize;
+    private final int transferLogMaxFiles;
 
     public AppConfiguration(String configFile) throws IOException {
         try (InputStream inputStream = Files.newInputStream(Paths.get(configFile))) {
             Properties props = new Properties();
             props.load(inputStream);
+            props = withCalibration(props);
 
             homeDir = props.getProperty(PROP_BITBUCKET_HOME);
             bucket = props.getProperty(PROP_S3_BUCKET);
@@ -54,9 +135,91 @@ public class AppConfiguration {
             secretKey = props.getProperty(PROP_S3_SECRET_KET);
             endpointOverride = props.getProperty(PROP_S3_ENDPOINT_OVERRIDE, null);
             reverseMigration = Boolean.parseBoolean(props.getProperty(PROP_REVERSE_MIGRATION, String.valueOf(Boolean.FALSE)));
+            copyMigration = Boolean.parseBoolean(props.getProperty(PROP_COPY_MIGRATION, String.valueOf(Boolean.FALSE)));
+
+            // Any target bucket setting that is not specified is assumed to be the same as the source bucket's
+            targetBucket = props.getProperty(PROP_TARGET_S3_BUCKET);
+            targetRegion = props.getProperty(PROP_TARGET_S3_REGION, region);
+            targetAccessKey = props.getProperty(PROP_TARGET_S3_ACCESS_KEY, accessKey);
+            targetSecretKey = props.getProperty(PROP_TARGET_S3_SECRET_KEY, secretKey);
+            targetEndpointOverride = props.getProperty(PROP_TARGET_S3_ENDPOINT_OVERRIDE, endpointOverride);
+            threads = Integer.parseInt(props.getProperty(PROP_THREADS, String.valueOf(DEFAULT_THREADS)));
+            replicas = getReplicas(props, region, accessKey, secretKey, endpointOverride, threads);
+            maxConnections = Integer.parseInt(props.getProperty(PROP_MAX_CONNECTIONS,
+                    String.valueOf(Math.max(DEFAULT_MAX_CONNECTIONS, threads))));
+            multipartPartSize = Long.parseLong(props.getProperty(PROP_MULTIPART_PART_SIZE,
+                    String.valueOf(DEFAULT_MULTIPART_PART_SIZE)));
+            multipartThreshold = Long.parseLong(props.getProperty(PROP_MULTIPART_THRESHOLD,
+                    String.valueOf(DEFAULT_MULTIPART_THRESHOLD)));
+            calibrate = Boolean.parseBoolean(props.getProperty(PROP_CALIBRATE, String.valueOf(Boolean.FALSE)));
+            calibrateMaxThreads = Integer.parseInt(props.getProperty(PROP_CALIBRATE_MAX_THREADS,
+                    String.valueOf(DEFAULT_CALIBRATE_MAX_THREADS)));
+            calibrateOutputFile = props.getProperty(PROP_CALIBRATE_OUTPUT_FILE, DEFAULT_CALIBRATE_OUTPUT_FILE);
+            verifyLocal = Boolean.parseBoolean(props.getProperty(PROP_VERIFY_LOCAL, String.valueOf(Boolean.FALSE)));
+            digestCacheFile = props.getProperty(PROP_DIGEST_CACHE_FILE, null);
+            durableDownloads = Boolean.parseBoolean(props.getProperty(PROP_DURABLE_DOWNLOADS,
+                    String.valueOf(Boolean.FALSE)));
+            durableDownloadsBatchSize = Integer.parseInt(props.getProperty(PROP_DURABLE_DOWNLOADS_BATCH_SIZE,
+                    String.valueOf(DEFAULT_DURABLE_DOWNLOADS_BATCH_SIZE)));
+            prune = Boolean.parseBoolean(props.getProperty(PROP_PRUNE, String.valueOf(Boolean.FALSE)));
+            // Deleting objects cannot be undone so only do so when explicitly asked to
+            pruneDryRun = Boolean.parseBoolean(props.getProperty(PROP_PRUNE_DRY_RUN, String.valueOf(Boolean.TRUE)));
+            pruneKeepList = props.getProperty(PROP_PRUNE_KEEP_LIST, null);
+            pruneReportFile = props.getProperty(PROP_PRUNE_REPORT_FILE, null);
+            transferLogFile = props.getProperty(PROP_TRANSFER_LOG_FILE, null);
+            transferLogMaxFileSize = Long.parseLong(props.getProperty(PROP_TRANSFER_LOG_MAX_FILE_SIZE,
+                    String.valueOf(DEFAULT_TRANSFER_LOG_MAX_FILE_SIZE)));
+            transferLogMaxFiles = Integer.parseInt(props.getProperty(PROP_TRANSFER_LOG_MAX_FILES,
+                    String.valueOf(DEFAULT_TRANSFER_LOG_MAX_FILES)));
+        }
+    }
+
+    /**
+     * Settings recommended by a calibration run are used as defaults which the configuration file can override.
+     */
+    private static Properties withCalibration(Properties props) throws IOException {
+        String calibrationFile = props.getProperty(PROP_CALIBRATION_FILE);
+        if (calibrationFile == null) {
+            return props;
+        }
+
+        try (InputStream inputStream = Files.newInputStream(Paths.get(calibrationFile))) {
+            Properties calibratedProps = new Properties();
+            calibratedProps.load(inputStream);
+
+            Properties layeredProps = new Properties(calibratedProps);
+            layeredProps.putAll(props);
+            return layeredProps;
         }
     }
 
+    /**
+     * Any replica setting that is not specified is assumed to be the same as the primary bucket's, other than the
+     * bucket itself.
+     */
+    private static List<Replica> getReplicas(Properties props, String region, String accessKey, String secretKey,
+                                             String endpointOverride, int threads) {
+        Set<String> names = new LinkedHashSet<>();
+        for (String name : props.getProperty(PROP_REPLICAS, "").split(",")) {
+            if (!name.isBlank()) {
+                names.add(name.trim());
+            }
+        }
+
+        List<Replica> replicas = new ArrayList<>(names.size());
+        for (String name : names) {
+            String prefix = PROP_REPLICA_PREFIX + name;
+            replicas.add(new Replica(name,
+                    props.getProperty(prefix + PROP_REPLICA_S3_BUCKET),
+                    props.getProperty(prefix + PROP_REPLICA_S3_REGION, region),
+                    props.getProperty(prefix + PROP_REPLICA_S3_ACCESS_KEY, accessKey),
+                    props.getProperty(prefix + PROP_REPLICA_S3_SECRET_KEY, secretKey),
+                    props.getProperty(prefix + PROP_REPLICA_S3_ENDPOINT_OVERRIDE, endpointOverride),
+                    Integer.parseInt(props.getProperty(prefix + PROP_REPLICA_THREADS, String.valueOf(threads)))));
+        }
+        return List.copyOf(replicas);
+    }
+
     public String getBitbucketHomeDir() {
         return homeDir;
     }
@@ -88,4 +251,242 @@ public class AppConfiguration {
     public boolean isReverseMigration() {
         return reverseMigration;
     }
+
+    /**
+     * @return {@code true} if LFS objects should be copied directly from the source bucket to the target bucket,
+     *         without transiting the Bitbucket shared home.
+     */
+    public boolean isCopyMigration() {
+        return copyMigration;
+    }
+
+    public String getTargetS3Bucket() {
+        return targetBucket;
+    }
+
+    public String getTargetS3Region() {
+        return targetRegion;
+    }
+
+    public String getTargetS3AccessKey() {
+        return targetAccessKey;
+    }
+
+    public String getTargetS3SecretKey() {
+        return targetSecretKey;
+    }
+
+    public String getTargetS3EndpointOverride() {
+        return targetEndpointOverride;
+    }
+
+    public boolean isTargetEndpointOverride() {
+        return targetEndpointOverride != null;
+    }
+
+    /**
+     * @return the additional buckets every LFS object is uploaded to alongside the primary bucket, in the order
+     *         they are configured. Empty if objects are only uploaded to the primary bucket.
+     */
+    public List<Replica> getReplicas() {
+        return replicas;
+    }
+
+    /**
+     * @return the number of objects to transfer concurrently.
+     */
+    public int getThreads() {
+        return threads;
+    }
+
+    /**
+     * @return the maximum number of HTTP connections to open to each bucket's S3 service.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return the part size in bytes used when uploading or copying an object in multiple parts.
+     */
+    public long getMultipartPartSize() {
+        return multipartPartSize;
+    }
+
+    /**
+     * @return the size in bytes above which objects are uploaded in multiple parts.
+     */
+    public long getMultipartThreshold() {
+        return multipartThreshold;
+    }
+
+    /**
+     * @return {@code true} if a calibration run should be performed to measure the best settings for the bucket.
+     */
+    public boolean isCalibrate() {
+        return calibrate;
+    }
+
+    /**
+     * @return the highest number of concurrent transfers a calibration run will try.
+     */
+    public int getCalibrateMaxThreads() {
+        return calibrateMaxThreads;
+    }
+
+    /**
+     * @return the path of the properties file the settings recommended by a calibration run are written to. It can
+     *         be loaded by setting {@code calibration.file}.
+     */
+    public String getCalibrateOutputFile() {
+        return calibrateOutputFile;
+    }
+
+    /**
+     * @return {@code true} if the SHA256 digest of each local LFS object should be checked against its OID before
+     *         it is uploaded.
+     */
+    public boolean isVerifyLocal() {
+        return verifyLocal;
+    }
+
+    /**
+     * @return the path of the file the digests of local LFS objects are remembered in between runs, or
+     *         {@code null} if they should be calculated every time.
+     */
+    public String getDigestCacheFile() {
+        return digestCacheFile;
+    }
+
+    /**
+     * @return {@code true} if each downloaded LFS object should be fsync'd before it is given its final name, so
+     *         that a crash never leaves a partially written object behind.
+     */
+    public boolean isDurableDownloads() {
+        return durableDownloads;
+    }
+
+    /**
+     * @return the maximum number of downloaded LFS objects made durable together.
+     */
+    public int getDurableDownloadsBatchSize() {
+        return durableDownloadsBatchSize;
+    }
+
+    /**
+     * @return {@code true} if LFS objects in the bucket which no longer exist in Bitbucket should be deleted.
+     */
+    public boolean isPrune() {
+        return prune;
+    }
+
+    public boolean isPruneDryRun() {
+        return pruneDryRun;
+    }
+
+    /**
+     * @return the path of a file listing the IDs of the hierarchies whose objects should be kept when pruning, or
+     *         {@code null} if the objects in the embedded LFS object store should be kept instead.
+     */
+    public String getPruneKeepList() {
+        return pruneKeepList;
+    }
+
+    public boolean isPruneKeepList() {
+        return pruneKeepList != null;
+    }
+
+    /**
+     * @return the path of the file the key of every orphaned object is written to when pruning, or {@code null}.
+     */
+    public String getPruneReportFile() {
+        return pruneReportFile;
+    }
+
+    /**
+     * @return the path of the JSON lines file each object transfer is recorded in, or {@code null} if transfers
+     *         should not be recorded.
+     */
+    public String getTransferLogFile() {
+        return transferLogFile;
+    }
+
+    public boolean isTransferLog() {
+        return transferLogFile != null;
+    }
+
+    /**
+     * @return the size in bytes at which the transfer log file is rotated.
+     */
+    public long getTransferLogMaxFileSize() {
+        return transferLogMaxFileSize;
+    }
+
+    /**
+     * @return the number of rotated transfer log files to keep.
+     */
+    public int getTransferLogMaxFiles() {
+        return transferLogMaxFiles;
+    }
+
+    /**
+     * The settings of an additional bucket LFS objects are uploaded to, configured with
+     * {@code replica.<name>.*} properties.
+     */
+    public static final class Replica {
+
+        private final String name;
+        private final String bucket;
+        private final String region;
+        private final String accessKey;
+        private final String secretKey;
+        private final String endpointOverride;
+        private final int threads;
+
+        private Replica(String name, String bucket, String region, String accessKey, String secretKey,
+                        String endpointOverride, int threads) {
+            this.name = name;
+            this.bucket = bucket;
+            this.region = region;
+            this.accessKey = accessKey;
+            this.secretKey = secretKey;
+            this.endpointOverride = endpointOverride;
+            this.threads = threads;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getS3Bucket() {
+            return bucket;
+        }
+
+        public String getS3Region() {
+            return region;
+        }
+
+        public String getS3AccessKey() {
+            return accessKey;
+        }
+
+        public String getS3SecretKey() {
+            return secretKey;
+        }
+
+        public String getS3EndpointOverride() {
+            return endpointOverride;
+        }
+
+        public boolean isEndpointOverride() {
+            return endpointOverride != null;
+        }
+
+        /**
+         * @return the number of objects to upload to this bucket concurrently.
+         */
+        public int getThreads() {
+            return threads;
+        }
+    }
 }
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2023 Atlassian
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.atlassian.bitbucket.tool.lfs.s3;
+
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Calculates the SHA256 digests of local files, remembering them between runs so a file is only hashed again when
+ * its identity changes.
+ * <p>
+ * A file's identity is its path, file key (the device and inode on Unix filesystems), size and last modified time.
+ * Digests are stored in a memory-mapped open-addressing hash table of fixed size records:
+ * <pre>
+ * | path hash (8) | file key hash (8) | size (8) | last modified nanos (8) | SHA256 digest (32) |
+ * </pre>
+ * A path hash of zero marks an empty slot. The table doubles in size, by rewriting it to a new file which replaces
+ * the old one, whenever it becomes more than 70% full.
+ */
+public class DigestCache implements AutoCloseable {
+
+    private static final int MAGIC = 0x4C465344;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RECORD_SIZE = 64;
+    private static final int DIGEST_SIZE = 32;
+    private static final int INITIAL_CAPACITY = 1 << 16;
+    /**
+     * The capacity at which the table stops growing, keeping the mapping well within the 2GB limit of a single
+     * {@link MappedByteBuffer}. Once full, digests are still calculated but no longer remembered.
+     */
+    private static final int MAX_CAPACITY = 1 << 24;
+    private static final int MAX_LOAD_PERCENT = 70;
+
+    private static final int OFFSET_HEADER_VERSION = 4;
+    private static final int OFFSET_HEADER_COUNT = 8;
+    private static final int OFFSET_HEADER_CAPACITY = 12;
+    private static final int OFFSET_FILE_KEY = 8;
+    private static final int OFFSET_SIZE = 16;
+    private static final int OFFSET_MODIFIED = 24;
+    private static final int OFFSET_DIGEST = 32;
+
+    private final Path file;
+    private final int initialCapacity;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int capacity;
+    private int count;
+
+    /**
+     * @param file the file digests are stored in, or {@code null} if digests should not be remembered.
+     */
+    public DigestCache(Path file) throws IOException {
+        this(file, INITIAL_CAPACITY);
+    }
+
+    /**
+     * @param initialCapacity the number of records a new table has room for, which must be a power of two.
+     */
+    DigestCache(Path file, int initialCapacity) throws IOException {
+        this.file = file;
+        this.initialCapacity = initialCapacity;
+        if (file != null) {
+            open();
+        }
+    }
+
+    /**
+     * @return the hex encoded SHA256 digest of the given file.
+     */
+    public String sha256Hex(Path path) throws IOException {
+        // Read the identity before hashing so a file modified while being hashed is hashed again next time
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        long pathHash = hash(path.toAbsolutePath().toString());
+        long fileKeyHash = hash(String.valueOf(attributes.fileKey()));
+        long size = attributes.size();
+        long modified = attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+        byte[] digest = get(pathHash, fileKeyHash, size, modified);
+        if (digest != null) {
+            hits.increment();
+        } else {
+            misses.increment();
+            try (InputStream inputStream = Files.newInputStream(path)) {
+                digest = DigestUtils.sha256(inputStream);
+            }
+            put(pathHash, fileKeyHash, size, modified, digest);
+        }
+
+        return Hex.encodeHexString(digest);
+    }
+
+    /**
+     * Remembers a digest which has been verified some other way, for example by S3 when the file was uploaded, so
+     * the file need not be hashed the next time it is checked.
+     *
+     * @param attributes the file's attributes, read before its digest was verified.
+     */
+    public void remember(Path path, BasicFileAttributes attributes, String sha256Hex) {
+        try {
+            put(hash(path.toAbsolutePath().toString()), hash(String.valueOf(attributes.fileKey())), attributes.size(),
+                    attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS), Hex.decodeHex(sha256Hex));
+        } catch (DecoderException e) {
+            throw new IllegalArgumentException("Not a SHA256 digest: " + sha256Hex, e);
+        } catch (IOException e) {
+            // The file is simply hashed next time it is checked
+            System.out.println(" Warning: Digest cache " + file + " could not be updated: " + e.getMessage());
+        }
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public synchronized void close() {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // The digests have already been forced to disk
+            }
+            channel = null;
+        }
+    }
+
+    private synchronized byte[] get(long pathHash, long fileKeyHash, long size, long modified) {
+        if (buffer == null) {
+            return null;
+        }
+
+        int offset = recordOffset(findSlot(buffer, capacity, pathHash));
+        if (buffer.getLong(offset) != pathHash
+                || buffer.getLong(offset + OFFSET_FILE_KEY) != fileKeyHash
+                || buffer.getLong(offset + OFFSET_SIZE) != size
+                || buffer.getLong(offset + OFFSET_MODIFIED) != modified) {
+            return null;
+        }
+
+        byte[] digest = new byte[DIGEST_SIZE];
+        buffer.get(offset + OFFSET_DIGEST, digest);
+        return digest;
+    }
+
+    private synchronized void put(long pathHash, long fileKeyHash, long size, long modified, byte[] digest)
+            throws IOException {
+        if (buffer == null) {
+            return;
+        }
+
+        int slot = findSlot(buffer, capacity, pathHash);
+        boolean added = buffer.getLong(recordOffset(slot)) == 0;
+        if (added && (long) (count + 1) * 100 > (long) capacity * MAX_LOAD_PERCENT) {
+            if (capacity >= MAX_CAPACITY) {
+                return;
+            }
+            grow();
+            slot = findSlot(buffer, capacity, pathHash);
+        }
+
+        writeRecord(buffer, slot, pathHash, fileKeyHash, size, modified, digest);
+        if (added) {
+            buffer.putInt(OFFSET_HEADER_COUNT, ++count);
+        }
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        long fileSize = channel.size();
+        if (fileSize >= HEADER_SIZE) {
+            MappedByteBuffer existing = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize);
+            int existingCapacity = existing.getInt(OFFSET_HEADER_CAPACITY);
+            if (existing.getInt(0) == MAGIC && existing.getInt(OFFSET_HEADER_VERSION) == VERSION
+                    && fileSize == HEADER_SIZE + (long) existingCapacity * RECORD_SIZE) {
+                buffer = existing;
+                capacity = existingCapacity;
+                count = existing.getInt(OFFSET_HEADER_COUNT);
+                return;
+            }
+            System.out.println(" Warning: Digest cache " + file + " is not valid and will be recreated");
+        }
+
+        channel.truncate(0);
+        capacity = initialCapacity;
+        count = 0;
+        buffer = initialize(channel, capacity);
+    }
+
+    /**
+     * Rewrites the table with double the capacity to a new file, which then replaces the current one.
+     */
+    private void grow() throws IOException {
+        int newCapacity = capacity * 2;
+        Path newFile = file.resolveSibling(file.getFileName() + ".tmp");
+        FileChannel newChannel = FileChannel.open(newFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer newBuffer = initialize(newChannel, newCapacity);
+
+        byte[] digest = new byte[DIGEST_SIZE];
+        for (int slot = 0; slot < capacity; slot++) {
+            int offset = recordOffset(slot);
+            long pathHash = buffer.getLong(offset);
+            if (pathHash != 0) {
+                buffer.get(offset + OFFSET_DIGEST, digest);
+                writeRecord(newBuffer, findSlot(newBuffer, newCapacity, pathHash), pathHash,
+                        buffer.getLong(offset + OFFSET_FILE_KEY), buffer.getLong(offset + OFFSET_SIZE),
+                        buffer.getLong(offset + OFFSET_MODIFIED), digest);
+            }
+        }
+        newBuffer.putInt(OFFSET_HEADER_COUNT, count);
+        newBuffer.force();
+
+        channel.close();
+        Files.move(newFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = newChannel;
+        buffer = newBuffer;
+        capacity = newCapacity;
+    }
+
+    private static MappedByteBuffer initialize(FileChannel channel, int capacity) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) capacity * RECORD_SIZE);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(OFFSET_HEADER_VERSION, VERSION);
+        buffer.putInt(OFFSET_HEADER_COUNT, 0);
+        buffer.putInt(OFFSET_HEADER_CAPACITY, capacity);
+        return buffer;
+    }
+
+    /**
+     * @return the slot holding the given path hash or, if there is none, the empty slot it should be stored in.
+     */
+    private static int findSlot(MappedByteBuffer buffer, int capacity, long pathHash) {
+        int mask = capacity - 1;
+        int slot = (int) (pathHash ^ (pathHash >>> 32)) & mask;
+        long slotHash;
+        while ((slotHash = buffer.getLong(recordOffset(slot))) != 0 && slotHash != pathHash) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Writes a record so that one torn part way through, for example by a crash, is never found by a lookup. A new
+     * record's path hash is written last, so until then the slot is empty. An existing record's size is first set
+     * to -1, which matches no file, and only set to the real size once the rest of the record has been written.
+     */
+    private static void writeRecord(MappedByteBuffer buffer, int slot, long pathHash, long fileKeyHash, long size,
+                                    long modified, byte[] digest) {
+        int offset = recordOffset(slot);
+        buffer.putLong(offset + OFFSET_SIZE, -1);
+        buffer.put(offset + OFFSET_DIGEST, digest);
+        buffer.putLong(offset + OFFSET_FILE_KEY, fileKeyHash);
+        buffer.putLong(offset + OFFSET_MODIFIED, modified);
+        buffer.putLong(offset + OFFSET_SIZE, size);
+        buffer.putLong(offset, pathHash);
+    }
+
+    private static int recordOffset(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    /**
+     * @return the 64-bit FNV-1a hash of the given string, which is never zero since that marks an empty slot.
+     */
+    private static long hash(String value) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : value.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash == 0 ? 1 : hash;
+    }
+}
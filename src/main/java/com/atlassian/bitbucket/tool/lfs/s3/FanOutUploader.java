@@ -0,0 +1,390 @@
+/*
+ * Copyright 2023 Atlassian
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.atlassian.bitbucket.tool.lfs.s3;
+
+import com.atlassian.bitbucket.tool.lfs.s3.TransferLog.Operation;
+import com.atlassian.bitbucket.tool.lfs.s3.TransferLog.Outcome;
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.model.CompletedPart;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.atlassian.bitbucket.tool.lfs.s3.S3TransferManagerHelper.forEachParallel;
+import static com.atlassian.bitbucket.tool.lfs.s3.S3TransferManagerHelper.getOidStream;
+import static com.atlassian.bitbucket.tool.lfs.s3.S3TransferManagerHelper.getPartSize;
+import static com.atlassian.bitbucket.tool.lfs.s3.S3TransferManagerHelper.toKey;
+import static com.atlassian.bitbucket.tool.lfs.s3.S3TransferManagerHelper.verifyLocalObject;
+
+/**
+ * Uploads LFS objects from the embedded LFS object store to several buckets, reading each object from disk only once
+ * however many buckets it is uploaded to.
+ * <p>
+ * Every bucket is checked for an object first, and the object is only read if at least one bucket does not have it.
+ * Objects no larger than the part size are read into a buffer which each of those buckets uploads from with a single
+ * {@code PutObject} request, and S3 verifies the content against the OID. Larger objects are read a part at a time
+ * into a buffer, each part being uploaded to every bucket before the next is read, whatever the multipart threshold
+ * used for single bucket uploads. S3 only verifies these part by part, so their digest is calculated as the parts
+ * are read and the multipart uploads are only completed if it matches the OID, so a corrupted local object is never
+ * uploaded. When local objects are verified, objects which every bucket already has are also checked
+ * against their OID, and the OID of each object uploaded is remembered as its digest.
+ * <p>
+ * Each bucket has its own pool of threads, so its concurrency is limited independently of the others, and a failure
+ * uploading to one bucket does not stop the object being uploaded to the rest. Since the buffers are shared, objects
+ * are read only as fast as the slowest bucket accepts them.
+ */
+public class FanOutUploader implements AutoCloseable {
+
+    /**
+     * The smallest buffer allocated, which objects smaller than it share.
+     */
+    private static final int MIN_BUFFER_SIZE = 64 * 1024;
+
+    private final List<Destination> destinations;
+    private final DigestCache digestCache;
+    private final long partSize;
+    private final int threads;
+    /**
+     * Buffers are reused across objects, pooled by size. Each is a power of two, so an object is read into a buffer
+     * less than twice its size, and at most one is in use by each reading thread.
+     */
+    private final Map<Integer, Queue<byte[]>> buffers = new ConcurrentHashMap<>();
+    /**
+     * The total size of the pooled buffers, which is limited to {@code threads * partSize} so idle buffers of every
+     * size are not kept for every thread.
+     */
+    private final AtomicLong pooledBytes = new AtomicLong();
+    private final long maxPooledBytes;
+
+    /**
+     * @param destinations the buckets to upload to, in the order their summaries are reported.
+     * @param partSize     the size of the largest object uploaded with a single {@code PutObject} request, and the
+     *                     preferred part size for larger objects.
+     * @param digestCache  the cache used to check each local object against its OID, or {@code null} if local
+     *                     objects should not be checked.
+     */
+    public FanOutUploader(List<Destination> destinations, long partSize, DigestCache digestCache) {
+        this.destinations = destinations;
+        this.digestCache = digestCache;
+        this.partSize = partSize;
+        // Read enough objects concurrently to keep the busiest bucket's threads occupied
+        threads = destinations.stream().mapToInt(destination -> destination.threads).max().orElse(1);
+        maxPooledBytes = threads * partSize;
+    }
+
+    @Override
+    public void close() {
+        destinations.forEach(destination -> destination.executor.shutdown());
+    }
+
+    /**
+     * Uploads all LFS objects under the given hierarchy to every bucket that does not already have them.
+     *
+     * @return a summary of the successful, skipped and failed uploads for each bucket, keyed by destination name.
+     */
+    public Map<String, TransferSummary> uploadHierarchy(Path hierarchyDir) {
+        Map<String, TransferSummary> summaries = new LinkedHashMap<>();
+        destinations.forEach(destination -> summaries.put(destination.name, new TransferSummary()));
+
+        String hierarchy = hierarchyDir.getFileName().toString();
+        try (Stream<String> oids = getOidStream(hierarchyDir)) {
+            forEachParallel(oids, threads, oid -> uploadObject(hierarchyDir, hierarchy, oid, summaries),
+                    oid -> summaries.values().forEach(TransferSummary::incrementFailed));
+        }
+
+        return summaries;
+    }
+
+    private void uploadObject(Path hierarchyDir, String hierarchy, String oid, Map<String, TransferSummary> summaries) {
+        long start = System.nanoTime();
+        Path file = hierarchyDir.resolve(oid.substring(0, 2)).resolve(oid.substring(2));
+        String key = toKey(hierarchy, oid);
+
+        List<DestinationUpload> uploads = destinations.stream()
+                .map(destination -> new DestinationUpload(destination, oid))
+                .collect(Collectors.toList());
+        runAll(uploads, upload -> upload.existingSize = upload.destination.helper.getObjectSize(key));
+
+        // The size is recorded in the transfer log, so take it from the existing objects or the open file rather
+        // than reading it separately
+        long size = uploads.stream().mapToLong(upload -> upload.existingSize).max().orElse(-1);
+        List<DestinationUpload> pending = uploads.stream()
+                .filter(upload -> upload.existingSize < 0)
+                .collect(Collectors.toList());
+        if (pending.isEmpty()) {
+            // Objects already in every bucket are still verified, so the whole local store is checked
+            if (digestCache != null && !verifyLocalObject(digestCache, file, oid)) {
+                uploads.forEach(upload -> upload.failed = true);
+            }
+        } else {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                // Read before uploading, so a file modified during the upload is hashed next time it is verified
+                BasicFileAttributes attributes = digestCache == null ? null :
+                        Files.readAttributes(file, BasicFileAttributes.class);
+                size = channel.size();
+                if (size <= partSize) {
+                    putObject(channel, key, oid, (int) size, pending);
+                } else {
+                    putObjectMultipart(channel, key, oid, size, pending);
+                }
+                // Any upload succeeding means either S3 or the streamed digest has verified the object
+                if (attributes != null && pending.stream().anyMatch(upload -> !upload.failed)) {
+                    digestCache.remember(file, attributes, oid);
+                }
+            } catch (IOException e) {
+                System.err.println("  Error: Failure when reading " + oid + ": " + e.getMessage());
+                pending.forEach(upload -> upload.failed = true);
+            }
+        }
+
+        for (DestinationUpload upload : uploads) {
+            TransferSummary summary = summaries.get(upload.destination.name);
+            Outcome outcome;
+            if (upload.failed) {
+                summary.incrementFailed();
+                outcome = Outcome.FAILED;
+            } else if (upload.existingSize >= 0) {
+                summary.incrementSkipped();
+                outcome = Outcome.SKIPPED;
+            } else {
+                summary.incrementSuccessful();
+                outcome = Outcome.SUCCESSFUL;
+            }
+            upload.destination.helper.logTransfer(Operation.UPLOAD, hierarchy, oid, size, outcome, start,
+                    upload.attempts);
+        }
+    }
+
+    private void putObject(FileChannel channel, String key, String oid, int size, List<DestinationUpload> uploads)
+            throws IOException {
+        byte[] buffer = acquireBuffer(size);
+        try {
+            read(channel, buffer, 0, size);
+            runAll(uploads, upload -> upload.destination.helper.putObject(key, buffer, size, oid));
+        } finally {
+            releaseBuffer(buffer);
+        }
+    }
+
+    private void putObjectMultipart(FileChannel channel, String key, String oid, long size,
+                                    List<DestinationUpload> uploads) throws IOException {
+        long objectPartSize = getPartSize(size, partSize);
+        byte[] buffer = acquireBuffer(Math.toIntExact(objectPartSize));
+        try {
+            runAll(uploads, upload -> upload.uploadId = upload.destination.helper.createMultipartUpload(key));
+
+            MessageDigest digest = DigestUtils.getSha256Digest();
+            int partNumber = 1;
+            for (long offset = 0; offset < size; offset += objectPartSize, partNumber++) {
+                if (uploads.stream().allMatch(upload -> upload.failed)) {
+                    return;
+                }
+
+                int length = (int) Math.min(objectPartSize, size - offset);
+                read(channel, buffer, offset, length);
+                digest.update(buffer, 0, length);
+
+                int number = partNumber;
+                runAll(uploads, upload -> upload.parts.add(upload.destination.helper.uploadPart(key, upload.uploadId,
+                        number, RequestBody.fromContentProvider(() -> new ByteArrayInputStream(buffer, 0, length),
+                                length, "application/octet-stream"))));
+            }
+
+            String actualDigest = Hex.encodeHexString(digest.digest());
+            if (!actualDigest.equals(oid)) {
+                System.err.println("  Error: Local object " + oid + " does not match its OID. Actual: "
+                        + actualDigest);
+                uploads.forEach(upload -> upload.failed = true);
+                return;
+            }
+
+            runAll(uploads, upload -> {
+                upload.destination.helper.completeMultipartUpload(key, upload.uploadId, upload.parts);
+                upload.completed = true;
+            });
+        } finally {
+            releaseBuffer(buffer);
+            // No partial object is left behind in any bucket whose upload was not completed
+            for (DestinationUpload upload : uploads) {
+                if (upload.uploadId != null && !upload.completed) {
+                    upload.failed = true;
+                    upload.destination.helper.abortMultipartUpload(key, upload.uploadId);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return a buffer of at least the given size, and less than twice it unless it is very small.
+     */
+    private byte[] acquireBuffer(int size) {
+        int bufferSize = getBufferSize(size);
+        byte[] buffer = buffers.computeIfAbsent(bufferSize, key -> new ConcurrentLinkedQueue<>()).poll();
+        if (buffer == null) {
+            return new byte[bufferSize];
+        }
+        pooledBytes.addAndGet(-buffer.length);
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool for reuse, unless the pool is already full.
+     */
+    private void releaseBuffer(byte[] buffer) {
+        if (pooledBytes.addAndGet(buffer.length) <= maxPooledBytes) {
+            buffers.get(buffer.length).offer(buffer);
+        } else {
+            pooledBytes.addAndGet(-buffer.length);
+        }
+    }
+
+    /**
+     * @return the given size rounded up to a power of two, or the size itself if that would overflow.
+     */
+    private static int getBufferSize(int size) {
+        if (size <= MIN_BUFFER_SIZE) {
+            return MIN_BUFFER_SIZE;
+        }
+        int bufferSize = Integer.highestOneBit(size - 1) << 1;
+        return bufferSize > 0 ? bufferSize : size;
+    }
+
+    /**
+     * Runs the action for every upload which has not failed, each on its destination's threads, and waits for them
+     * all to finish. An upload whose action fails is marked as failed.
+     */
+    private static void runAll(List<DestinationUpload> uploads, Consumer<DestinationUpload> action) {
+        List<DestinationUpload> running = new ArrayList<>(uploads.size());
+        List<Future<?>> futures = new ArrayList<>(uploads.size());
+        for (DestinationUpload upload : uploads) {
+            if (!upload.failed) {
+                running.add(upload);
+                futures.add(upload.destination.executor.submit(() -> run(upload, action)));
+            }
+        }
+
+        for (int i = 0; i < futures.size(); i++) {
+            try {
+                futures.get(i).get();
+            } catch (ExecutionException e) {
+                System.err.println("  Error: Failure when uploading " + running.get(i).oid + " to "
+                        + running.get(i).destination.name + ": " + e.getCause());
+                running.get(i).failed = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                running.get(i).failed = true;
+            }
+        }
+    }
+
+    private static void run(DestinationUpload upload, Consumer<DestinationUpload> action) {
+        RequestAttemptCounter.reset();
+        try {
+            action.accept(upload);
+        } catch (SdkException e) {
+            System.err.println("  Error: Failure when uploading " + upload.oid + " to " + upload.destination.name
+                    + ": " + e.getMessage());
+            upload.failed = true;
+        } finally {
+            upload.attempts += RequestAttemptCounter.get();
+        }
+    }
+
+    /**
+     * Fills the start of the buffer with {@code length} bytes from the given position of the file.
+     */
+    private static void read(FileChannel channel, byte[] buffer, long position, int length) throws IOException {
+        ByteBuffer target = ByteBuffer.wrap(buffer, 0, length);
+        while (target.hasRemaining()) {
+            if (channel.read(target, position + target.position()) == -1) {
+                throw new EOFException("File is shorter than expected");
+            }
+        }
+    }
+
+    /**
+     * A bucket objects are uploaded to, with its own pool of threads.
+     */
+    public static final class Destination {
+
+        private final String name;
+        private final S3TransferManagerHelper helper;
+        private final int threads;
+        private final ExecutorService executor;
+
+        /**
+         * @param threads the number of requests made to the bucket concurrently.
+         */
+        public Destination(String name, S3TransferManagerHelper helper, int threads) {
+            this.name = name;
+            this.helper = helper;
+            this.threads = threads;
+            executor = Executors.newFixedThreadPool(threads, runnable -> {
+                Thread thread = new Thread(runnable, "fan-out-" + name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * The state of uploading a single object to a single bucket. Only one action runs for it at a time, and each is
+     * waited for before the next is started, so the fields need no further synchronization.
+     */
+    private static final class DestinationUpload {
+
+        private final Destination destination;
+        private final String oid;
+        private final List<CompletedPart> parts = new ArrayList<>();
+
+        private long existingSize = -1;
+        private boolean failed;
+        private boolean completed;
+        private String uploadId;
+        private int attempts;
+
+        private DestinationUpload(Destination destination, String oid) {
+            this.destination = destination;
+            this.oid = oid;
+        }
+    }
+}
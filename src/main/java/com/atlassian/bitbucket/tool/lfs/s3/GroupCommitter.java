@@ -0,0 +1,321 @@
+/*
+ * Copyright 2023 Atlassian
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.atlassian.bitbucket.tool.lfs.s3;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Makes downloaded files durable using group commit.
+ * <p>
+ * Files are downloaded to a temporary file and handed to the committer, which collects them into batches on
+ * a background thread. For each batch the files are fsync'd in parallel, atomically renamed to their final names
+ * and then each affected directory is fsync'd once, so the renames survive a crash. A file therefore only appears
+ * under its final name once its content is durable, while the cost of waiting for the storage is shared by the
+ * whole batch rather than paid by the download for every file.
+ * <p>
+ * An unexpected failure committing a batch fails every file in it which has not been reported yet, and the committer
+ * carries on with the next batch. Should the committer thread stop anyway, files are failed rather than queued and
+ * {@link #flush()} returns instead of waiting forever.
+ */
+public class GroupCommitter implements AutoCloseable {
+
+    /**
+     * How long to wait for more files to fill a batch once the first one has arrived.
+     */
+    private static final long MAX_BATCH_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    /**
+     * How often a thread waiting on the committer checks that it is still running.
+     */
+    private static final long LIVENESS_CHECK_SECONDS = 1;
+    /**
+     * The number of directory levels above a committed file which are fsync'd: the {@code oid[0:2]} directory, the
+     * hierarchy directory and the storage directory. Any of the first two may have just been created by the download.
+     */
+    private static final int SYNCED_DIRECTORY_LEVELS = 3;
+
+    private final int batchSize;
+    private final BlockingQueue<PendingCommit> queue;
+    private final ExecutorService syncExecutor;
+    private final Thread committerThread;
+
+    private volatile boolean closed;
+
+    /**
+     * @param batchSize the maximum number of files committed together.
+     * @param threads   the number of files fsync'd concurrently.
+     */
+    public GroupCommitter(int batchSize, int threads) {
+        this.batchSize = batchSize;
+        // Bounded so downloads are held back, rather than the amount of unsynced data growing, if the storage
+        // cannot keep up
+        queue = new LinkedBlockingQueue<>(batchSize * 4);
+        syncExecutor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "group-committer-sync");
+            thread.setDaemon(true);
+            return thread;
+        });
+        committerThread = new Thread(this::runCommitter, "group-committer");
+        committerThread.setDaemon(true);
+        committerThread.start();
+    }
+
+    /**
+     * Queues a temporary file to be made durable and renamed to the target path.
+     *
+     * @param callback called with {@code true} once the target file is durable, or {@code false} if it could not be
+     *                 committed, in which case the temporary file is deleted. It is normally called from the
+     *                 committer thread, and is called exactly once.
+     */
+    public void commit(Path tempFile, Path targetFile, Consumer<Boolean> callback) {
+        PendingCommit pending = new PendingCommit(tempFile, targetFile, callback, null);
+        enqueue(pending, pending::fail);
+    }
+
+    /**
+     * Waits until every file queued so far has been committed, or the committer has stopped.
+     */
+    public void flush() {
+        CountDownLatch latch = new CountDownLatch(1);
+        enqueue(new PendingCommit(null, null, null, latch), latch::countDown);
+        try {
+            while (!latch.await(LIVENESS_CHECK_SECONDS, TimeUnit.SECONDS)) {
+                if (!committerThread.isAlive()) {
+                    System.err.println("  Error: The group committer has stopped; some downloads were not committed");
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Commits any queued files and stops the committer.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        flush();
+        closed = true;
+        try {
+            committerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        syncExecutor.shutdown();
+    }
+
+    /**
+     * Queues the commit, waiting for space if necessary, unless the committer has stopped.
+     *
+     * @param onRejected run if the commit could not be queued.
+     */
+    private void enqueue(PendingCommit pending, Runnable onRejected) {
+        try {
+            while (committerThread.isAlive()) {
+                if (queue.offer(pending, LIVENESS_CHECK_SECONDS, TimeUnit.SECONDS)) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        onRejected.run();
+    }
+
+    private void runCommitter() {
+        List<PendingCommit> batch = new ArrayList<>(batchSize);
+        List<CountDownLatch> flushes = new ArrayList<>();
+        try {
+            while (!closed || !queue.isEmpty()) {
+                PendingCommit first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+
+                // Fill the batch until it is full, the delay has passed or a flush has been requested
+                long deadline = System.nanoTime() + MAX_BATCH_DELAY_NANOS;
+                PendingCommit next = first;
+                while (next != null) {
+                    if (next.flushLatch != null) {
+                        flushes.add(next.flushLatch);
+                        break;
+                    }
+                    batch.add(next);
+                    if (batch.size() >= batchSize) {
+                        break;
+                    }
+                    next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                }
+
+                try {
+                    commitBatch(batch);
+                } catch (RuntimeException e) {
+                    System.err.println("  Error: Unexpected failure when committing downloads: " + e);
+                    batch.forEach(PendingCommit::fail);
+                }
+                batch.clear();
+                flushes.forEach(CountDownLatch::countDown);
+                flushes.clear();
+            }
+        } catch (InterruptedException e) {
+            batch.forEach(PendingCommit::fail);
+            flushes.forEach(CountDownLatch::countDown);
+        }
+    }
+
+    private void commitBatch(List<PendingCommit> batch) throws InterruptedException {
+        if (batch.isEmpty()) {
+            return;
+        }
+
+        // Every fsync waits on the storage, particularly on NFS, so wait on many at once
+        List<Callable<Boolean>> syncs = new ArrayList<>(batch.size());
+        for (PendingCommit pending : batch) {
+            syncs.add(() -> fsyncFile(pending.tempFile));
+        }
+        List<Future<Boolean>> synced = syncExecutor.invokeAll(syncs);
+
+        List<PendingCommit> committed = new ArrayList<>(batch.size());
+        Set<Path> dirs = new LinkedHashSet<>();
+        for (int i = 0; i < batch.size(); i++) {
+            PendingCommit pending = batch.get(i);
+            if (isSynced(synced.get(i)) && rename(pending)) {
+                committed.add(pending);
+                Path dir = pending.targetFile.getParent();
+                for (int level = 0; level < SYNCED_DIRECTORY_LEVELS && dir != null; level++) {
+                    dirs.add(dir);
+                    dir = dir.getParent();
+                }
+            } else {
+                pending.fail();
+            }
+        }
+
+        dirs.forEach(GroupCommitter::fsyncDirectory);
+        committed.forEach(pending -> pending.complete(true));
+    }
+
+    private static boolean isSynced(Future<Boolean> synced) throws InterruptedException {
+        try {
+            return synced.get();
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    private static boolean rename(PendingCommit pending) {
+        try {
+            Files.move(pending.tempFile, pending.targetFile, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        } catch (IOException e) {
+            System.err.println("  Error: Failure when committing " + pending.targetFile + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @return {@code true} if the file was fsync'd, otherwise {@code false}.
+     */
+    private static boolean fsyncFile(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.force(true);
+            return true;
+        } catch (IOException e) {
+            System.err.println("  Error: Failure when syncing " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    private static void fsyncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException ignored) {
+            // Not every platform supports fsync'ing a directory, in which case the rename is as durable as it gets
+        }
+    }
+
+    private static void deleteQuietly(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException ignored) {
+            // A leftover temporary file is overwritten by the next download of the same object
+        }
+    }
+
+    private static final class PendingCommit {
+
+        private final Path tempFile;
+        private final Path targetFile;
+        private final Consumer<Boolean> callback;
+        private final CountDownLatch flushLatch;
+
+        private boolean done;
+
+        private PendingCommit(Path tempFile, Path targetFile, Consumer<Boolean> callback, CountDownLatch flushLatch) {
+            this.tempFile = tempFile;
+            this.targetFile = targetFile;
+            this.callback = callback;
+            this.flushLatch = flushLatch;
+        }
+
+        /**
+         * Deletes the temporary file and reports the commit as failed, unless it has already been reported.
+         */
+        private void fail() {
+            if (!done) {
+                deleteQuietly(tempFile);
+                complete(false);
+            }
+        }
+
+        /**
+         * Reports the outcome, at most once. A failing callback must not stop the committer, so it is only reported.
+         */
+        private void complete(boolean committed) {
+            if (done) {
+                return;
+            }
+            done = true;
+            try {
+                callback.accept(committed);
+            } catch (RuntimeException e) {
+                System.err.println("  Error: Unexpected failure when recording commit of " + targetFile + ": " + e);
+            }
+        }
+    }
+}
@@ -17,9 +17,18 @@ package com.atlassian.bitbucket.tool.lfs.s3;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.Writer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import static com.atlassian.bitbucket.tool.lfs.s3.S3TransferManagerHelper.HIERARCHY_ID_PATTERN;
+import static com.atlassian.bitbucket.tool.lfs.s3.S3TransferManagerHelper.getDirStream;
 
 /**
  * The {@link #main main} entry point for the migration application.
@@ -33,12 +42,25 @@ public class MigrationApp {
         }
 
         AppConfiguration config = getConfiguration(args[0]);
-
-        Path homeDir = Paths.get(config.getBitbucketHomeDir());
-        verifyDirectoryExists(homeDir, "Specified home directory");
-
-        Path lfsDir = homeDir.resolve("shared/data/git-lfs/storage");
-        verifyDirectoryExists(lfsDir, "LFS storage directory");
+        if (Stream.of(config.isReverseMigration(), config.isCopyMigration(), config.isPrune(), config.isCalibrate())
+                .filter(Boolean::booleanValue).count() > 1) {
+            System.err.println("Only one of reverse-migration, copy-migration, prune and calibrate may be enabled");
+            System.exit(1);
+        }
+        if (!config.getReplicas().isEmpty() && (config.isReverseMigration() || config.isCopyMigration()
+                || config.isPrune() || config.isCalibrate())) {
+            System.err.println("Replicas may only be configured when migrating to S3");
+            System.exit(1);
+        }
+        if (config.isVerifyLocal() && (config.isReverseMigration() || config.isCopyMigration() || config.isPrune()
+                || config.isCalibrate())) {
+            System.err.println("verify-local may only be enabled when migrating to S3");
+            System.exit(1);
+        }
+        if (config.isTransferLog() && (config.getTransferLogMaxFileSize() < 1 || config.getTransferLogMaxFiles() < 1)) {
+            System.err.println("transfer-log.max-file-size and transfer-log.max-files must be at least 1");
+            System.exit(1);
+        }
 
         if (config.isEndpointOverride()) {
             System.out.println("S3 endpoint override: " + config.getS3EndpointOverride());
@@ -46,15 +68,46 @@ public class MigrationApp {
         System.out.println("S3 bucket: " + config.getS3Bucket());
         System.out.println("S3 region: " + config.getS3Region());
 
-        S3TransferManager s3TransferManager = new S3TransferManager(config);
-        TransferSummary overallSummary;
+        if (config.isPrune()) {
+            prune(config);
+            return;
+        }
+        if (config.isCalibrate()) {
+            calibrate(config);
+            return;
+        }
+        if (!config.getReplicas().isEmpty()) {
+            uploadToReplicas(config);
+            return;
+        }
 
-        if (!config.isReverseMigration()) {
-            System.out.printf("%nBeginning migration of embedded LFS object store to S3...%n");
-            overallSummary = s3TransferManager.upload(lfsDir);
+        Path lfsDir = null;
+        if (config.isCopyMigration()) {
+            if (config.getTargetS3Bucket() == null) {
+                System.err.println("Must provide target.s3.bucket when copy-migration is enabled");
+                System.exit(1);
+            }
+            if (config.isTargetEndpointOverride()) {
+                System.out.println("Target S3 endpoint override: " + config.getTargetS3EndpointOverride());
+            }
+            System.out.println("Target S3 bucket: " + config.getTargetS3Bucket());
+            System.out.println("Target S3 region: " + config.getTargetS3Region());
         } else {
-            System.out.printf("%nBeginning migration of S3 LFS objects to filesystem...%n");
-            overallSummary = s3TransferManager.download(lfsDir);
+            lfsDir = getLfsDir(config);
+        }
+
+        TransferSummary overallSummary;
+        try (S3TransferManager s3TransferManager = new S3TransferManager(config)) {
+            if (config.isCopyMigration()) {
+                System.out.printf("%nBeginning copy of S3 LFS objects to target bucket...%n");
+                overallSummary = s3TransferManager.copy();
+            } else if (!config.isReverseMigration()) {
+                System.out.printf("%nBeginning migration of embedded LFS object store to S3...%n");
+                overallSummary = s3TransferManager.upload(lfsDir);
+            } else {
+                System.out.printf("%nBeginning migration of S3 LFS objects to filesystem...%n");
+                overallSummary = s3TransferManager.download(lfsDir);
+            }
         }
 
         System.out.printf("%nFinished.%n");
@@ -62,6 +115,120 @@ public class MigrationApp {
         System.out.println(overallSummary);
     }
 
+    private static void uploadToReplicas(AppConfiguration config) {
+        for (AppConfiguration.Replica replica : config.getReplicas()) {
+            if (replica.getS3Bucket() == null) {
+                System.err.println("Must provide replica." + replica.getName() + ".s3.bucket");
+                System.exit(1);
+            }
+            if (S3TransferManager.PRIMARY_DESTINATION.equals(replica.getName())) {
+                System.err.println("Replica name " + replica.getName() + " is reserved for s3.bucket");
+                System.exit(1);
+            }
+            if (replica.isEndpointOverride()) {
+                System.out.println("Replica " + replica.getName() + " S3 endpoint override: "
+                        + replica.getS3EndpointOverride());
+            }
+            System.out.println("Replica " + replica.getName() + " S3 bucket: " + replica.getS3Bucket());
+            System.out.println("Replica " + replica.getName() + " S3 region: " + replica.getS3Region());
+        }
+
+        Path lfsDir = getLfsDir(config);
+        Map<String, TransferSummary> overallSummaries;
+        try (S3TransferManager s3TransferManager = new S3TransferManager(config)) {
+            System.out.printf("%nBeginning migration of embedded LFS object store to S3 and %d replicas...%n",
+                    config.getReplicas().size());
+            overallSummaries = s3TransferManager.uploadToReplicas(lfsDir);
+        }
+
+        System.out.printf("%nFinished.%n");
+        overallSummaries.forEach((destination, summary) -> {
+            System.out.printf("%nOverall summary for %s:%n", destination);
+            System.out.println(summary);
+        });
+    }
+
+    private static void calibrate(AppConfiguration config) {
+        Properties recommended = null;
+        try (S3TransferManager s3TransferManager = new S3TransferManager(config)) {
+            System.out.printf("%nBeginning calibration of S3 bucket...%n");
+            recommended = s3TransferManager.calibrate(config.getCalibrateMaxThreads());
+        } catch (IllegalStateException e) {
+            System.err.println("Calibration failed: " + e.getMessage());
+            System.exit(1);
+        }
+
+        Path outputFile = Paths.get(config.getCalibrateOutputFile());
+        try (Writer writer = Files.newBufferedWriter(outputFile)) {
+            recommended.store(writer, "Recommended settings for S3 bucket " + config.getS3Bucket()
+                    + ", load them by setting calibration.file=" + outputFile.toAbsolutePath());
+        } catch (IOException e) {
+            System.err.println("Error writing calibration file: " + e.getMessage());
+            System.exit(1);
+        }
+
+        System.out.printf("%nFinished.%n");
+        System.out.printf("%nRecommended settings (written to %s):%n", outputFile);
+        recommended.forEach((key, value) -> System.out.println("- " + key + "=" + value));
+        System.out.printf("%nmultipart.part-size only applies to objects larger than multipart.threshold (currently %d "
+                + "bytes) and to copies of objects larger than 5 GB.%n", config.getMultipartThreshold());
+    }
+
+    private static void prune(AppConfiguration config) {
+        Path reportFile = config.getPruneReportFile() == null ? null : Paths.get(config.getPruneReportFile());
+        PruneSummary overallSummary;
+        if (config.isPruneKeepList()) {
+            Set<String> keptHierarchies = getKeepList(config.getPruneKeepList());
+            try (S3TransferManager s3TransferManager = new S3TransferManager(config)) {
+                System.out.printf("%nBeginning prune of S3 LFS objects not in %d kept hierarchies...%n",
+                        keptHierarchies.size());
+                overallSummary = s3TransferManager.prune(keptHierarchies, config.isPruneDryRun(), reportFile);
+            }
+        } else {
+            Path lfsDir = getLfsDir(config);
+            try (Stream<Path> lfsDirStream = getDirStream(lfsDir, HIERARCHY_ID_PATTERN)) {
+                if (lfsDirStream.findAny().isEmpty()) {
+                    // Pruning against an empty object store would delete everything
+                    System.err.println("Embedded LFS object store is empty, refusing to prune");
+                    System.exit(1);
+                }
+            }
+            try (S3TransferManager s3TransferManager = new S3TransferManager(config)) {
+                System.out.printf("%nBeginning prune of S3 LFS objects not in embedded LFS object store...%n");
+                overallSummary = s3TransferManager.prune(lfsDir, config.isPruneDryRun(), reportFile);
+            }
+        }
+
+        System.out.printf("%nFinished.%n");
+        System.out.printf("%nOverall summary%s:%n", config.isPruneDryRun() ? " (dry run)" : "");
+        System.out.println(overallSummary);
+    }
+
+    private static Set<String> getKeepList(String keepListFile) {
+        Set<String> keptHierarchies = new HashSet<>();
+        try (Stream<String> lines = Files.lines(Paths.get(keepListFile))) {
+            lines.map(String::trim)
+                    .filter(line -> !line.isEmpty() && !line.startsWith("#"))
+                    .forEach(line -> {
+                        if (!HIERARCHY_ID_PATTERN.matcher(line).matches()) {
+                            System.err.println("Invalid hierarchy ID in keep list: " + line);
+                            System.exit(1);
+                        }
+                        keptHierarchies.add(line);
+                    });
+        } catch (IOException e) {
+            System.err.println("Error reading keep list: " + e.getMessage());
+            System.exit(1);
+        }
+
+        if (keptHierarchies.isEmpty()) {
+            // Pruning against an empty keep list would delete everything
+            System.err.println("Keep list is empty, refusing to prune");
+            System.exit(1);
+        }
+        return keptHierarchies;
+    }
+
     private static AppConfiguration getConfiguration(String configFile) {
         try {
             return new AppConfiguration(configFile);
@@ -75,6 +242,16 @@ public class MigrationApp {
         return null;
     }
 
+    private static Path getLfsDir(AppConfiguration config) {
+        Path homeDir = Paths.get(config.getBitbucketHomeDir());
+        verifyDirectoryExists(homeDir, "Specified home directory");
+
+        Path lfsDir = homeDir.resolve("shared/data/git-lfs/storage");
+        verifyDirectoryExists(lfsDir, "LFS storage directory");
+
+        return lfsDir;
+    }
+
     private static void verifyDirectoryExists(Path dir, String description) {
         if (!Files.exists(dir) || !Files.isDirectory(dir)) {
             System.out.printf("%n%s does not exist: %s%n", description, dir);
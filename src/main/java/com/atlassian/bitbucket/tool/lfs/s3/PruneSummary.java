@@ -0,0 +1,81 @@
+package com.atlassian.bitbucket.tool.lfs.s3;
+
+import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Summarizes the results of {@link S3TransferManager#prune(Path, boolean, Path)}'s.
+ * <p>
+ * Counts may be incremented concurrently by multiple delete threads.
+ */
+public class PruneSummary {
+
+    private final boolean dryRun;
+    private final LongAdder deleted = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder ignored = new LongAdder();
+    private final LongAdder kept = new LongAdder();
+
+    public PruneSummary(boolean dryRun) {
+        this.dryRun = dryRun;
+    }
+
+    public void add(PruneSummary summary) {
+        this.deleted.add(summary.getDeleted());
+        this.failed.add(summary.getFailed());
+        this.ignored.add(summary.getIgnored());
+        this.kept.add(summary.getKept());
+    }
+
+    /**
+     * @return the number of orphaned objects deleted or, for a dry run, the number that would have been deleted.
+     */
+    public long getDeleted() {
+        return deleted.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return the number of keys which were not LFS object keys and were therefore left alone.
+     */
+    public long getIgnored() {
+        return ignored.sum();
+    }
+
+    public long getKept() {
+        return kept.sum();
+    }
+
+    public boolean isDryRun() {
+        return dryRun;
+    }
+
+    public void addDeleted(long count) {
+        deleted.add(count);
+    }
+
+    public void addFailed(long count) {
+        failed.add(count);
+    }
+
+    public void incrementIgnored() {
+        ignored.increment();
+    }
+
+    public void incrementKept() {
+        kept.increment();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("- Kept: %d%n"
+                + "- %s: %d%n"
+                + "- Failed: %d%n"
+                + "- Ignored (unexpected key): %d",
+                getKept(), dryRun ? "Orphaned (dry run, not deleted)" : "Deleted", getDeleted(), getFailed(),
+                getIgnored());
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2023 Atlassian
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.atlassian.bitbucket.tool.lfs.s3;
+
+import software.amazon.awssdk.core.interceptor.Context;
+import software.amazon.awssdk.core.interceptor.ExecutionAttributes;
+import software.amazon.awssdk.core.interceptor.ExecutionInterceptor;
+
+/**
+ * Counts the HTTP request attempts, including SDK retries, made by the current thread.
+ * <p>
+ * The synchronous S3 client runs interceptors on the calling thread, so a transfer thread can {@link #reset()}
+ * the count before processing an object and read it back with {@link #get()} afterwards.
+ */
+class RequestAttemptCounter implements ExecutionInterceptor {
+
+    private static final ThreadLocal<int[]> ATTEMPTS = ThreadLocal.withInitial(() -> new int[1]);
+
+    static int get() {
+        return ATTEMPTS.get()[0];
+    }
+
+    static void reset() {
+        ATTEMPTS.get()[0] = 0;
+    }
+
+    @Override
+    public void beforeTransmission(Context.BeforeTransmission context, ExecutionAttributes executionAttributes) {
+        ATTEMPTS.get()[0]++;
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2023 Atlassian
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.atlassian.bitbucket.tool.lfs.s3;
+
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
+import software.amazon.awssdk.services.s3.model.S3Object;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static com.atlassian.bitbucket.tool.lfs.s3.S3TransferManagerHelper.MAX_DELETE_BATCH_SIZE;
+import static com.atlassian.bitbucket.tool.lfs.s3.S3TransferManagerHelper.batch;
+import static com.atlassian.bitbucket.tool.lfs.s3.S3TransferManagerHelper.forEachParallel;
+
+/**
+ * Measures the throughput of a bucket to recommend the number of threads, connection pool size and multipart part
+ * size to use for it.
+ * <p>
+ * Synthetic objects are written under a scratch prefix outside {@code git-lfs/}, so they never mix with LFS
+ * content, and are deleted once the calibration run has finished. The run has two phases:
+ * <ol>
+ *     <li>Small objects are uploaded and then downloaded at doubling concurrency until the throughput stops
+ *     improving by at least {@value #MIN_IMPROVEMENT_PERCENT}%. The lowest concurrency achieving
+ *     {@value #KNEE_PERCENT}% of the best throughput is the knee, and is recommended.</li>
+ *     <li>Larger objects are uploaded in parts of increasing size at the recommended concurrency. The part size
+ *     with the best throughput is recommended, preferring larger parts when the throughput is similar since they
+ *     need fewer requests.</li>
+ * </ol>
+ */
+public class S3Calibrator {
+
+    private static final String SCRATCH_PREFIX = "git-lfs-calibration";
+
+    private static final int SMALL_OBJECT_SIZE = 4 * 1024 * 1024;
+    private static final int OBJECTS_PER_THREAD = 2;
+    private static final int LARGE_OBJECT_SIZE = 32 * 1024 * 1024;
+    private static final int MAX_PART_SIZE_THREADS = 8;
+    private static final List<Integer> PART_SIZES = List.of(
+            5 * 1024 * 1024, 8 * 1024 * 1024, 16 * 1024 * 1024, 32 * 1024 * 1024);
+
+    private static final int MIN_IMPROVEMENT_PERCENT = 10;
+    private static final int KNEE_PERCENT = 90;
+    private static final int SIMILAR_PERCENT = 95;
+
+    private final byte[] content;
+    private final S3TransferManagerHelper helper;
+    private final int maxThreads;
+    private final String prefix;
+
+    private int smallObjectCount;
+
+    public S3Calibrator(S3TransferManagerHelper helper, int maxThreads) {
+        this.helper = helper;
+        this.maxThreads = maxThreads;
+
+        prefix = SCRATCH_PREFIX + "/" + UUID.randomUUID();
+        // Random content so neither compression nor deduplication flatter the results
+        content = new byte[LARGE_OBJECT_SIZE];
+        new SplittableRandom().nextBytes(content);
+    }
+
+    /**
+     * @return the recommended {@code threads}, {@code max-connections} and {@code multipart.part-size} settings.
+     */
+    public Properties calibrate() {
+        try {
+            System.out.printf("%nMeasuring upload throughput of %d MiB objects...%n", SMALL_OBJECT_SIZE >> 20);
+            int uploadThreads = findKnee(threads -> putObjects(threads, threads * OBJECTS_PER_THREAD));
+
+            System.out.printf("%nMeasuring download throughput of %d MiB objects...%n", SMALL_OBJECT_SIZE >> 20);
+            int downloadThreads = findKnee(threads -> readObjects(threads, threads * OBJECTS_PER_THREAD));
+
+            // Running short of threads costs more throughput than running a few too many
+            int threads = Math.max(uploadThreads, downloadThreads);
+
+            System.out.printf("%nMeasuring upload throughput of %d MiB objects in parts with %d threads...%n",
+                    LARGE_OBJECT_SIZE >> 20, Math.min(threads, MAX_PART_SIZE_THREADS));
+            long partSize = findPartSize(Math.min(threads, MAX_PART_SIZE_THREADS));
+
+            Properties recommended = new Properties();
+            recommended.setProperty("threads", String.valueOf(threads));
+            recommended.setProperty("max-connections", String.valueOf(threads));
+            recommended.setProperty("multipart.part-size", String.valueOf(partSize));
+            return recommended;
+        } finally {
+            deleteScratchObjects();
+        }
+    }
+
+    private int findKnee(ThroughputTest test) {
+        double[] throughputs = new double[Integer.SIZE];
+        int level = 0;
+        double best = 0;
+        for (int threads = 1; threads <= maxThreads; threads *= 2, level++) {
+            throughputs[level] = test.run(threads);
+            if (throughputs[level] < best * (100 + MIN_IMPROVEMENT_PERCENT) / 100) {
+                level++;
+                break;
+            }
+            best = throughputs[level];
+        }
+
+        double max = Arrays.stream(throughputs, 0, level).max().orElse(0);
+        if (max == 0) {
+            throw new IllegalStateException("Every calibration transfer failed");
+        }
+        for (int i = 0; i < level; i++) {
+            if (throughputs[i] >= max * KNEE_PERCENT / 100) {
+                return 1 << i;
+            }
+        }
+        return 1;
+    }
+
+    private long findPartSize(int threads) {
+        double[] throughputs = PART_SIZES.stream()
+                .mapToDouble(partSize -> putObjectsMultipart(threads, partSize))
+                .toArray();
+
+        double max = Arrays.stream(throughputs).max().orElse(0);
+        for (int i = PART_SIZES.size() - 1; i >= 0; i--) {
+            if (throughputs[i] >= max * SIMILAR_PERCENT / 100) {
+                return PART_SIZES.get(i);
+            }
+        }
+        return PART_SIZES.get(PART_SIZES.size() - 1);
+    }
+
+    private double putObjects(int threads, int count) {
+        double throughput = measure(String.format("%3d threads", threads), threads, count, SMALL_OBJECT_SIZE,
+                i -> helper.putObject(smallObjectKey(i), content, SMALL_OBJECT_SIZE));
+        if (throughput > 0) {
+            smallObjectCount = Math.max(smallObjectCount, count);
+        }
+        return throughput;
+    }
+
+    private double readObjects(int threads, int count) {
+        // Only the objects from successful upload measurements are known to exist, so reuse them as needed
+        return measure(String.format("%3d threads", threads), threads, count, SMALL_OBJECT_SIZE,
+                i -> helper.readObject(smallObjectKey(i % smallObjectCount)));
+    }
+
+    private double putObjectsMultipart(int threads, int partSize) {
+        return measure(String.format("%3d MiB parts", partSize >> 20), threads, threads, LARGE_OBJECT_SIZE,
+                i -> helper.putObjectMultipart(prefix + "/large/" + i, LARGE_OBJECT_SIZE, partSize,
+                        (offset, length) -> RequestBody.fromContentProvider(
+                                () -> new ByteArrayInputStream(content, offset.intValue(), length.intValue()),
+                                length, "application/octet-stream")));
+    }
+
+    /**
+     * Transfers {@code count} objects of {@code objectSize} bytes across {@code threads} threads, printing the
+     * throughput and latency.
+     *
+     * @return the throughput in MiB/s, or {@code 0} if any transfer failed.
+     */
+    private double measure(String description, int threads, int count, long objectSize, IntConsumer transfer) {
+        long[] latencies = new long[count];
+        AtomicInteger failures = new AtomicInteger();
+
+        long start = System.nanoTime();
+        forEachParallel(IntStream.range(0, count).boxed(), threads, i -> {
+            long objectStart = System.nanoTime();
+            try {
+                transfer.accept(i);
+            } catch (SdkException e) {
+                System.err.println("  Error: Failure during calibration: " + e.getMessage());
+                failures.incrementAndGet();
+            }
+            latencies[i] = System.nanoTime() - objectStart;
+        });
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        if (failures.get() > 0) {
+            // Failures, such as throttling, mean this level of concurrency is past the knee
+            System.out.printf("- %s: %d of %d transfers failed%n", description, failures.get(), count);
+            return 0;
+        }
+
+        Arrays.sort(latencies);
+        double throughput = count * objectSize / (1024.0 * 1024.0) / seconds;
+        System.out.printf("- %s: %.1f MiB/s (latency p50 %d ms, p99 %d ms)%n", description, throughput,
+                latencies[count / 2] / 1_000_000, latencies[(count * 99 - 1) / 100] / 1_000_000);
+        return throughput;
+    }
+
+    private void deleteScratchObjects() {
+        Stream<String> keys = helper.listObjects(prefix).stream()
+                .flatMap(resp -> resp.contents().stream())
+                .map(S3Object::key);
+
+        batch(keys, MAX_DELETE_BATCH_SIZE).forEach(batch -> {
+            if (helper.deleteObjects(batch) != batch.size()) {
+                System.err.println("  Error: Some calibration objects could not be deleted from " + prefix);
+            }
+        });
+    }
+
+    private String smallObjectKey(int index) {
+        return prefix + "/small/" + index;
+    }
+
+    @FunctionalInterface
+    private interface ThroughputTest {
+
+        /**
+         * @return the throughput in MiB/s at the given number of threads.
+         */
+        double run(int threads);
+    }
+}
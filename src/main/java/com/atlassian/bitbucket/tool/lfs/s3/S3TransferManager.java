@@ -18,60 +18,150 @@ package com.atlassian.bitbucket.tool.lfs.s3;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.http.apache.ApacheHttpClient;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static com.atlassian.bitbucket.tool.lfs.s3.S3TransferManagerHelper.HIERARCHY_ID_PATTERN;
 import static com.atlassian.bitbucket.tool.lfs.s3.S3TransferManagerHelper.getDirStream;
+import static com.atlassian.bitbucket.tool.lfs.s3.S3TransferManagerHelper.getOidStream;
 
 /**
  * Transfers files between the Bitbucket client and S3.
  */
 public class S3TransferManager implements AutoCloseable {
 
+    /**
+     * The destination name of the {@code s3.bucket} bucket when uploading to replicas as well.
+     */
+    public static final String PRIMARY_DESTINATION = "primary";
+
     private final String bucket;
     private final S3Client client;
     private final S3TransferManagerHelper helper;
+    private final S3Client targetClient;
+    private final S3TransferManagerHelper targetHelper;
+    private final List<S3Client> replicaClients = new ArrayList<>();
+    private final FanOutUploader fanOutUploader;
+    private final int threads;
+    private final TransferLog transferLog;
+    private final DigestCache digestCache;
+    private final boolean durableDownloads;
+    private final int durableBatchSize;
 
     public S3TransferManager(AppConfiguration config) {
-        AwsCredentialsProvider awsCredentialsProvider = StaticCredentialsProvider.create(
-                AwsBasicCredentials.create(config.getS3AccessKey(), config.getS3SecretKey()));
-
+        threads = config.getThreads();
+        durableDownloads = config.isDurableDownloads();
+        durableBatchSize = config.getDurableDownloadsBatchSize();
+        transferLog = createTransferLog(config);
+        digestCache = createDigestCache(config);
+        // A calibration run needs a connection for every concurrent transfer it tries
+        int maxConnections = config.isCalibrate() ?
+                Math.max(config.getMaxConnections(), config.getCalibrateMaxThreads()) : config.getMaxConnections();
         bucket = config.getS3Bucket();
-        client = S3Client.builder()
-                .endpointOverride(config.isEndpointOverride() ? URI.create(config.getS3EndpointOverride()) : null)
-                .region(Region.of(config.getS3Region()))
-                .credentialsProvider(awsCredentialsProvider)
-                .forcePathStyle(true)
-                .build();
-        helper = new S3TransferManagerHelper(bucket, client);
+        client = createClient(config.getS3Region(), config.getS3AccessKey(), config.getS3SecretKey(),
+                config.getS3EndpointOverride(), maxConnections);
+        helper = new S3TransferManagerHelper(bucket, client, transferLog, config.getMultipartPartSize(),
+                config.getMultipartThreshold(), digestCache);
+
+        if (config.isCopyMigration()) {
+            targetClient = createClient(config.getTargetS3Region(), config.getTargetS3AccessKey(),
+                    config.getTargetS3SecretKey(), config.getTargetS3EndpointOverride(), maxConnections);
+            targetHelper = new S3TransferManagerHelper(config.getTargetS3Bucket(), targetClient, transferLog,
+                    config.getMultipartPartSize(), config.getMultipartThreshold(), null);
+        } else {
+            targetClient = null;
+            targetHelper = null;
+        }
+
+        if (!config.getReplicas().isEmpty()) {
+            List<FanOutUploader.Destination> destinations = new ArrayList<>();
+            destinations.add(new FanOutUploader.Destination(PRIMARY_DESTINATION, helper, threads));
+            for (AppConfiguration.Replica replica : config.getReplicas()) {
+                S3Client replicaClient = createClient(replica.getS3Region(), replica.getS3AccessKey(),
+                        replica.getS3SecretKey(), replica.getS3EndpointOverride(),
+                        Math.max(maxConnections, replica.getThreads()));
+                replicaClients.add(replicaClient);
+                destinations.add(new FanOutUploader.Destination(replica.getName(),
+                        new S3TransferManagerHelper(replica.getS3Bucket(), replicaClient, transferLog,
+                                config.getMultipartPartSize(), config.getMultipartThreshold(), null),
+                        replica.getThreads()));
+            }
+            fanOutUploader = new FanOutUploader(destinations, config.getMultipartPartSize(), digestCache);
+        } else {
+            fanOutUploader = null;
+        }
     }
 
     @Override
     public void close() {
+        if (fanOutUploader != null) {
+            fanOutUploader.close();
+        }
         client.close();
+        if (targetClient != null) {
+            targetClient.close();
+        }
+        replicaClients.forEach(S3Client::close);
+        if (transferLog != null) {
+            transferLog.close();
+        }
+        if (digestCache != null) {
+            digestCache.close();
+            System.out.printf("%nLocal digests: %d cached, %d calculated%n", digestCache.getHits(),
+                    digestCache.getMisses());
+        }
     }
 
     /**
-     * Downloads all LFS objects from S3 to the specified LFS object store directory.
+     * Measures the throughput of the bucket at increasing concurrency and multipart part sizes, using synthetic
+     * objects under a scratch prefix which are deleted afterwards.
      *
-     * @param lfsDir the path of the embedded LFS object store directory.
-     * @return a summary containing the overall number of successful, skipped and failed object downloads.
+     * @param maxThreads the highest number of concurrent transfers to try.
+     * @return the recommended settings, which can be loaded by {@link AppConfiguration}.
      */
-    public TransferSummary download(Path lfsDir) {
+    public Properties calibrate(int maxThreads) {
+        return new S3Calibrator(helper, maxThreads).calibrate();
+    }
+
+    /**
+     * Copies all LFS objects from the source bucket to the target bucket.
+     * <p>
+     * Objects are copied server-side so their content never transits this client. The copy requests are issued
+     * with the target bucket's credentials, which must therefore also be able to read from the source bucket.
+     *
+     * @return a summary containing the overall number of successful, skipped and failed object copies.
+     */
+    public TransferSummary copy() {
+        if (targetHelper == null) {
+            throw new IllegalStateException("No target bucket has been configured");
+        }
+
         TransferSummary overallSummary = new TransferSummary();
 
         List<String> hierarchies = helper.getHierarchies();
         int processed = 0;
         for (String hierarchy : hierarchies) {
             System.out.printf("%nProcessing hierarchy %s (%d of %d)%n", hierarchy, ++processed, hierarchies.size());
-            TransferSummary summary = helper.downloadHierarchy(hierarchy, lfsDir.resolve(hierarchy));
+            TransferSummary summary = helper.copyHierarchy(hierarchy, targetHelper, threads);
             overallSummary.add(summary);
             System.out.println(summary);
         }
@@ -79,6 +169,63 @@ public class S3TransferManager implements AutoCloseable {
         return overallSummary;
     }
 
+    /**
+     * Downloads all LFS objects from S3 to the specified LFS object store directory.
+     *
+     * @param lfsDir the path of the embedded LFS object store directory.
+     * @return a summary containing the overall number of successful, skipped and failed object downloads.
+     */
+    public TransferSummary download(Path lfsDir) {
+        TransferSummary overallSummary = new TransferSummary();
+
+        List<String> hierarchies = helper.getHierarchies();
+        int processed = 0;
+        try (GroupCommitter committer = durableDownloads ? new GroupCommitter(durableBatchSize, threads) : null) {
+            for (String hierarchy : hierarchies) {
+                System.out.printf("%nProcessing hierarchy %s (%d of %d)%n", hierarchy, ++processed,
+                        hierarchies.size());
+                TransferSummary summary = helper.downloadHierarchy(hierarchy, lfsDir.resolve(hierarchy), committer,
+                        threads);
+                overallSummary.add(summary);
+                System.out.println(summary);
+            }
+        }
+
+        return overallSummary;
+    }
+
+    /**
+     * Deletes all LFS objects from S3 which are not present in the specified LFS object store directory.
+     * <p>
+     * This is only safe when the LFS object store directory holds every live object, i.e. when the bucket is
+     * a copy of the object store rather than the store Bitbucket currently uses.
+     *
+     * @param lfsDir     the path of the embedded LFS object store directory.
+     * @param dryRun     if {@code true} orphaned objects are counted and reported but not deleted.
+     * @param reportFile the file the key of every orphaned object is written to, or {@code null} if they should
+     *                   not be reported.
+     * @return a summary containing the overall number of kept, deleted and failed objects.
+     */
+    public PruneSummary prune(Path lfsDir, boolean dryRun, Path reportFile) {
+        return prune(hierarchy -> false, hierarchy -> {
+            Path hierarchyDir = lfsDir.resolve(hierarchy);
+            return Files.isDirectory(hierarchyDir) ? getOidStream(hierarchyDir) : Stream.empty();
+        }, dryRun, reportFile);
+    }
+
+    /**
+     * Deletes all LFS objects from S3 which do not belong to one of the specified hierarchies.
+     *
+     * @param keptHierarchies the IDs of the hierarchies whose objects should be kept.
+     * @param dryRun          if {@code true} orphaned objects are counted and reported but not deleted.
+     * @param reportFile      the file the key of every orphaned object is written to, or {@code null} if they
+     *                        should not be reported.
+     * @return a summary containing the overall number of kept, deleted and failed objects.
+     */
+    public PruneSummary prune(Set<String> keptHierarchies, boolean dryRun, Path reportFile) {
+        return prune(keptHierarchies::contains, hierarchy -> Stream.empty(), dryRun, reportFile);
+    }
+
     /**
      * Uploads all LFS objects from the specified LFS object store directory to S3.
      *
@@ -88,6 +235,49 @@ public class S3TransferManager implements AutoCloseable {
     public TransferSummary upload(Path lfsDir) {
         TransferSummary overallSummary = new TransferSummary();
 
+        List<Path> hierarchyDirs = getHierarchyDirs(lfsDir);
+        int processed = 0;
+        for (Path dir : hierarchyDirs) {
+            System.out.printf("%nProcessing hierarchy %s (%d of %d)%n", dir.getFileName(), ++processed, hierarchyDirs.size());
+            TransferSummary summary = helper.uploadHierarchy(dir, threads);
+            overallSummary.add(summary);
+            System.out.println(summary);
+        }
+
+        return overallSummary;
+    }
+
+    /**
+     * Uploads all LFS objects from the specified LFS object store directory to the primary bucket and every replica
+     * bucket, reading each object from disk only once. Objects larger than the multipart part size are uploaded in
+     * parts, whatever the multipart threshold.
+     *
+     * @param lfsDir the path of the embedded LFS object store directory.
+     * @return a summary containing the overall number of successful, skipped and failed object uploads for each
+     *         bucket, keyed by destination name with the primary bucket first.
+     */
+    public Map<String, TransferSummary> uploadToReplicas(Path lfsDir) {
+        if (fanOutUploader == null) {
+            throw new IllegalStateException("No replica buckets have been configured");
+        }
+
+        Map<String, TransferSummary> overallSummaries = new LinkedHashMap<>();
+
+        List<Path> hierarchyDirs = getHierarchyDirs(lfsDir);
+        int processed = 0;
+        for (Path dir : hierarchyDirs) {
+            System.out.printf("%nProcessing hierarchy %s (%d of %d)%n", dir.getFileName(), ++processed, hierarchyDirs.size());
+            fanOutUploader.uploadHierarchy(dir).forEach((destination, summary) -> {
+                overallSummaries.computeIfAbsent(destination, name -> new TransferSummary()).add(summary);
+                System.out.println(destination + ":");
+                System.out.println(summary);
+            });
+        }
+
+        return overallSummaries;
+    }
+
+    private static List<Path> getHierarchyDirs(Path lfsDir) {
         // Java is not smart enough to close streams that need to release file descriptors
         // so use try-with-resources
         try (Stream<Path> lfsDirStream = getDirStream(lfsDir, HIERARCHY_ID_PATTERN)) {
@@ -96,16 +286,79 @@ public class S3TransferManager implements AutoCloseable {
                 System.out.printf("%nEmbedded LFS object store is empty.%n");
                 System.exit(0);
             }
+            return hierarchyDirs;
+        }
+    }
 
+    private PruneSummary prune(Predicate<String> keepHierarchy, Function<String, Stream<String>> keptOids,
+                               boolean dryRun, Path reportFile) {
+        PruneSummary overallSummary = new PruneSummary(dryRun);
+
+        try (BufferedWriter report = reportFile == null ? null : Files.newBufferedWriter(reportFile)) {
+            List<String> hierarchies = helper.getHierarchies();
             int processed = 0;
-            for (Path dir : hierarchyDirs) {
-                System.out.printf("%nProcessing hierarchy %s (%d of %d)%n", dir.getFileName(), ++processed, hierarchyDirs.size());
-                TransferSummary summary = helper.uploadHierarchy(dir);
-                overallSummary.add(summary);
-                System.out.println(summary);
+            for (String hierarchy : hierarchies) {
+                System.out.printf("%nProcessing hierarchy %s (%d of %d)%n", hierarchy, ++processed, hierarchies.size());
+                if (keepHierarchy.test(hierarchy)) {
+                    System.out.println("- Kept (entire hierarchy)");
+                    continue;
+                }
+
+                // Java is not smart enough to close streams that need to release file descriptors
+                // so use try-with-resources
+                try (Stream<String> oidStream = keptOids.apply(hierarchy)) {
+                    PruneSummary summary = helper.pruneHierarchy(hierarchy, oidStream, dryRun, report, threads);
+                    overallSummary.add(summary);
+                    System.out.println(summary);
+                }
             }
+        } catch (IOException | UncheckedIOException e) {
+            System.err.println("Error writing prune report: " + e.getMessage());
+            throw new RuntimeException(e);
         }
 
         return overallSummary;
     }
+
+    private static S3Client createClient(String region, String accessKey, String secretKey,
+                                         String endpointOverride, int maxConnections) {
+        AwsCredentialsProvider awsCredentialsProvider = StaticCredentialsProvider.create(
+                AwsBasicCredentials.create(accessKey, secretKey));
+
+        return S3Client.builder()
+                .endpointOverride(endpointOverride != null ? URI.create(endpointOverride) : null)
+                .region(Region.of(region))
+                .credentialsProvider(awsCredentialsProvider)
+                .overrideConfiguration(c -> c.addExecutionInterceptor(new RequestAttemptCounter()))
+                .httpClientBuilder(ApacheHttpClient.builder().maxConnections(maxConnections))
+                .forcePathStyle(true)
+                .build();
+    }
+
+    private static DigestCache createDigestCache(AppConfiguration config) {
+        if (!config.isVerifyLocal()) {
+            return null;
+        }
+
+        try {
+            return new DigestCache(config.getDigestCacheFile() == null ? null : Paths.get(config.getDigestCacheFile()));
+        } catch (IOException e) {
+            System.err.println("Error opening digest cache: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static TransferLog createTransferLog(AppConfiguration config) {
+        if (!config.isTransferLog()) {
+            return null;
+        }
+
+        try {
+            return new TransferLog(Paths.get(config.getTransferLogFile()), config.getTransferLogMaxFileSize(),
+                    config.getTransferLogMaxFiles());
+        } catch (IOException e) {
+            System.err.println("Error opening transfer log: " + e.getMessage());
+            throw new RuntimeException(e);
+        }
+    }
 }
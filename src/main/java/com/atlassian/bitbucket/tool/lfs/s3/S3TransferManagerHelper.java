@@ -1,20 +1,45 @@
 package com.atlassian.bitbucket.tool.lfs.s3;
 
+import com.atlassian.bitbucket.tool.lfs.s3.TransferLog.Operation;
+import com.atlassian.bitbucket.tool.lfs.s3.TransferLog.Outcome;
 import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
-import software.amazon.awssdk.core.ResponseBytes;
+import software.amazon.awssdk.core.ResponseInputStream;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkException;
+import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.*;
 import software.amazon.awssdk.services.s3.paginators.ListObjectsV2Iterable;
 
-import java.io.FileOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import static org.apache.commons.codec.binary.Base64.decodeBase64;
 import static org.apache.commons.codec.binary.Base64.encodeBase64String;
@@ -46,13 +71,55 @@ public class S3TransferManagerHelper {
      * matches that filename path element.
      */
     private static final Pattern OID_LEVEL2_PATTERN = Pattern.compile("[0-9a-f]{62}");
+    /**
+     * Objects downloaded with durable downloads are first written to a temporary file named
+     * {@code .<sha256[2:63]>.tmp} alongside their final name. This pattern matches that filename path element.
+     */
+    private static final Pattern TEMP_FILE_PATTERN = Pattern.compile("\\.[0-9a-f]{62}\\.tmp");
+
+    /**
+     * The largest object S3 can upload with a single {@code PutObject} request or copy with a single
+     * {@code CopyObject} request. Larger objects must be transferred in parts.
+     */
+    private static final long MAX_SINGLE_PART_SIZE = 5L * 1024 * 1024 * 1024;
+    private static final long DEFAULT_PART_SIZE = 64L * 1024 * 1024;
+    /**
+     * The smallest part S3 accepts in a multipart upload, other than the last part.
+     */
+    private static final long MIN_PART_SIZE = 5L * 1024 * 1024;
+    private static final int MAX_PARTS = 10_000;
+    /**
+     * The maximum number of keys S3 accepts in a single {@code DeleteObjects} request.
+     */
+    protected static final int MAX_DELETE_BATCH_SIZE = 1000;
 
     private final String bucket;
     private final S3Client client;
+    private final TransferLog transferLog;
+    private final long partSize;
+    private final long multipartThreshold;
+    private final DigestCache digestCache;
 
     public S3TransferManagerHelper(String bucket, S3Client client) {
+        this(bucket, client, null, DEFAULT_PART_SIZE, MAX_SINGLE_PART_SIZE, null);
+    }
+
+    /**
+     * @param transferLog        the log each object transfer is recorded in, or {@code null} if transfers should
+     *                           not be recorded.
+     * @param partSize           the part size used when uploading or copying an object in multiple parts.
+     * @param multipartThreshold the size above which objects are uploaded in multiple parts.
+     * @param digestCache        the cache used to check each local object against its OID, whether or not it
+     *                           needs uploading, or {@code null} if local objects should not be checked.
+     */
+    public S3TransferManagerHelper(String bucket, S3Client client, TransferLog transferLog, long partSize,
+                                   long multipartThreshold, DigestCache digestCache) {
         this.bucket = bucket;
         this.client = client;
+        this.transferLog = transferLog;
+        this.partSize = partSize;
+        this.multipartThreshold = Math.min(multipartThreshold, MAX_SINGLE_PART_SIZE);
+        this.digestCache = digestCache;
     }
 
     /**
@@ -70,44 +137,524 @@ public class S3TransferManagerHelper {
         }
     }
 
+    /**
+     * Applies the given action to every item in the stream using a pool of {@code threads} threads, returning
+     * once all items have been processed.
+     * <p>
+     * The work queue is bounded so a stream over millions of objects is consumed only as fast as the items can be
+     * processed. When the queue is full the calling thread processes the item itself.
+     */
+    protected static <T> void forEachParallel(Stream<T> items, int threads, Consumer<T> action) {
+        forEachParallel(items, threads, action, item -> {
+        });
+    }
+
+    /**
+     * As {@link #forEachParallel(Stream, int, Consumer)}, except that if the action fails unexpectedly for an item
+     * the failure is reported and {@code onFailure} is called with the item. This happens whichever thread the action
+     * ran on, so a failure neither goes unnoticed on a pool thread nor stops the remaining items on the calling
+     * thread.
+     */
+    protected static <T> void forEachParallel(Stream<T> items, int threads, Consumer<T> action,
+                                              Consumer<T> onFailure) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 2), new ThreadPoolExecutor.CallerRunsPolicy());
+        try {
+            items.forEach(item -> executor.execute(() -> {
+                try {
+                    action.accept(item);
+                } catch (RuntimeException e) {
+                    System.err.println("  Error: Unexpected failure when processing " + item + ": " + e);
+                    onFailure.accept(item);
+                }
+            }));
+        } finally {
+            executor.shutdown();
+            try {
+                while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    // Keep waiting; large objects can take a long time to transfer
+                }
+            } catch (InterruptedException e) {
+                executor.shutdownNow();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Groups the items of the given stream into consecutive lists of at most {@code batchSize} items.
+     */
+    protected static <T> Stream<List<T>> batch(Stream<T> items, int batchSize) {
+        Iterator<T> iterator = items.iterator();
+        Iterator<List<T>> batches = new Iterator<>() {
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public List<T> next() {
+                List<T> batch = new ArrayList<>(batchSize);
+                while (batch.size() < batchSize && iterator.hasNext()) {
+                    batch.add(iterator.next());
+                }
+                return batch;
+            }
+        };
+
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(batches, Spliterator.ORDERED), false)
+                .onClose(items::close);
+    }
+
+    /**
+     * @return a stream of the OIDs of all LFS objects stored in the given hierarchy directory, in ascending order.
+     */
+    protected static Stream<String> getOidStream(Path hierarchyDir) {
+        return getDirStream(hierarchyDir, OID_LEVEL1_PATTERN)
+                .sorted()
+                .flatMap(objectDir -> getDirStream(objectDir, OID_LEVEL2_PATTERN).sorted())
+                .map(S3TransferManagerHelper::pathToOid);
+    }
+
+    /**
+     * Deletes every LFS object under the given hierarchy whose OID is not in {@code keptOids}.
+     * <p>
+     * The bucket listing is returned in ascending key order, so given {@code keptOids} in ascending order the two
+     * are merged in a single pass without holding either in memory. Orphaned objects are deleted in batches of up
+     * to 1000 keys using {@code DeleteObjects} requests spread across {@code threads} threads.
+     *
+     * Keys which are not of the form {@code git-lfs/<hierarchy>/<sha256[0:1]>/<sha256[2:63]>} are never deleted,
+     * only counted as ignored.
+     *
+     * @param keptOids the OIDs of the objects to keep, in ascending order.
+     * @param dryRun   if {@code true} orphaned objects are counted and reported but not deleted.
+     * @param report   a writer each orphaned object's key is written to, or {@code null} if they should not be
+     *                 reported.
+     */
+    protected PruneSummary pruneHierarchy(String hierarchy, Stream<String> keptOids, boolean dryRun, Writer report,
+                                          int threads) {
+        PruneSummary summary = new PruneSummary(dryRun);
+
+        Iterator<String> keptIterator = keptOids.iterator();
+        String[] nextKept = {keptIterator.hasNext() ? keptIterator.next() : null};
+        Stream<String> orphanedKeys = listObjects(BUCKET_KEY_PREFIX + "/" + hierarchy).stream()
+                .flatMap(resp -> resp.contents().stream())
+                .map(S3Object::key)
+                .filter(key -> {
+                    if (!isObjectKey(key)) {
+                        // Never delete what this tool did not write; it may belong to something else entirely
+                        System.out.println("  Warning: Ignoring unexpected key " + key);
+                        summary.incrementIgnored();
+                        return false;
+                    }
+                    String oid = keyToOid(key);
+                    while (nextKept[0] != null && nextKept[0].compareTo(oid) < 0) {
+                        nextKept[0] = keptIterator.hasNext() ? keptIterator.next() : null;
+                    }
+                    if (oid.equals(nextKept[0])) {
+                        summary.incrementKept();
+                        return false;
+                    }
+                    return true;
+                })
+                .peek(key -> writeReport(report, key));
+
+        if (dryRun) {
+            summary.addDeleted(orphanedKeys.count());
+        } else {
+            forEachParallel(batch(orphanedKeys, MAX_DELETE_BATCH_SIZE), threads, keys -> {
+                int deleted = deleteObjects(keys);
+                summary.addDeleted(deleted);
+                summary.addFailed(keys.size() - deleted);
+            });
+        }
+
+        return summary;
+    }
+
+    /**
+     * Deletes the objects with the given keys using a single {@code DeleteObjects} request.
+     *
+     * @return the number of objects successfully deleted.
+     */
+    protected int deleteObjects(List<String> keys) {
+        List<ObjectIdentifier> objects = keys.stream()
+                .map(key -> ObjectIdentifier.builder().key(key).build())
+                .collect(Collectors.toList());
+        DeleteObjectsRequest request = DeleteObjectsRequest.builder()
+                .bucket(bucket)
+                .delete(Delete.builder()
+                        .objects(objects)
+                        // Only report the keys which could not be deleted
+                        .quiet(true)
+                        .build())
+                .build();
+
+        try {
+            DeleteObjectsResponse response = client.deleteObjects(request);
+            for (S3Error error : response.errors()) {
+                System.err.println("  Error: Failure when deleting " + error.key() + ": " + error.message());
+            }
+            return keys.size() - response.errors().size();
+        } catch (SdkException e) {
+            System.err.println("  Error: Failure when deleting " + keys.size() + " objects: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Copies all LFS objects under the given hierarchy from this helper's bucket to the target's bucket. Objects
+     * which already exist in the target bucket are skipped.
+     */
+    protected TransferSummary copyHierarchy(String hierarchy, S3TransferManagerHelper target, int threads) {
+        TransferSummary summary = new TransferSummary();
+
+        Stream<S3Object> objects = listObjects(BUCKET_KEY_PREFIX + "/" + hierarchy).stream()
+                .flatMap(resp -> resp.contents().stream())
+                .filter(object -> isExpectedKey(object.key(), summary));
+        forEachParallel(objects, threads, object -> {
+            long start = System.nanoTime();
+            RequestAttemptCounter.reset();
+
+            String key = object.key();
+            Outcome outcome;
+            if (target.objectExists(key)) {
+                summary.incrementSkipped();
+                outcome = Outcome.SKIPPED;
+            } else {
+                boolean success = target.copyObject(bucket, key, object.size());
+                if (success) {
+                    summary.incrementSuccessful();
+                    outcome = Outcome.SUCCESSFUL;
+                } else {
+                    summary.incrementFailed();
+                    outcome = Outcome.FAILED;
+                }
+            }
+            target.logTransfer(Operation.COPY, hierarchy, keyToOid(key), object.size(), outcome, start);
+        }, object -> summary.incrementFailed());
+
+        return summary;
+    }
+
+    /**
+     * Copies the object with the given key from the source bucket into this helper's bucket, using the same key.
+     * The copy is performed server-side and S3 calculates a SHA256 checksum for the new object.
+     *
+     * @return {@code true} if the copy was successful, otherwise {@code false}.
+     */
+    protected boolean copyObject(String sourceBucket, String key, long size) {
+        try {
+            if (size > MAX_SINGLE_PART_SIZE) {
+                copyObjectMultipart(sourceBucket, key, size);
+                return true;
+            }
+
+            CopyObjectRequest request = CopyObjectRequest.builder()
+                    .sourceBucket(sourceBucket)
+                    .sourceKey(key)
+                    .destinationBucket(bucket)
+                    .destinationKey(key)
+                    .checksumAlgorithm(ChecksumAlgorithm.SHA256)
+                    .build();
+
+            CopyObjectResponse response = client.copyObject(request);
+            String checksum = response.copyObjectResult().checksumSHA256();
+            String oid = keyToOid(key);
+            // Not every S3 compatible store reports checksums for copied objects
+            if (checksum != null && !base64toHex(checksum).equalsIgnoreCase(oid)) {
+                System.out.println(" Warning: Object copied but has wrong checksum. Expected: "
+                        + oid + " Actual: " + base64toHex(checksum));
+            }
+        } catch (SdkException e) {
+            System.err.println("  Error: Failure when copying " +  key + ": " + e.getMessage());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Copies an object too large for a single {@code CopyObject} request as a sequence of {@code UploadPartCopy}
+     * requests. The multipart upload is aborted if any part fails, so no partial object is left behind.
+     * <p>
+     * S3 checks each part against the source object, but calculates no SHA256 checksum for the whole object, so
+     * unlike a single {@code CopyObject} the copy is not verified against its OID.
+     */
+    private void copyObjectMultipart(String sourceBucket, String key, long size) {
+        String uploadId = createMultipartUpload(key);
+        try {
+            long objectPartSize = getPartSize(size, partSize);
+            List<CompletedPart> parts = new ArrayList<>();
+            int partNumber = 1;
+            for (long start = 0; start < size; start += objectPartSize, partNumber++) {
+                long end = Math.min(start + objectPartSize, size) - 1;
+                UploadPartCopyRequest partRequest = UploadPartCopyRequest.builder()
+                        .sourceBucket(sourceBucket)
+                        .sourceKey(key)
+                        .destinationBucket(bucket)
+                        .destinationKey(key)
+                        .uploadId(uploadId)
+                        .partNumber(partNumber)
+                        .copySourceRange("bytes=" + start + "-" + end)
+                        .build();
+
+                CopyPartResult result = client.uploadPartCopy(partRequest).copyPartResult();
+                parts.add(CompletedPart.builder()
+                        .partNumber(partNumber)
+                        .eTag(result.eTag())
+                        .checksumSHA256(result.checksumSHA256())
+                        .build());
+            }
+
+            completeMultipartUpload(key, uploadId, parts);
+        } catch (SdkException e) {
+            abortMultipartUpload(key, uploadId);
+            throw e;
+        }
+    }
+
+    /**
+     * Uploads an object as a sequence of {@code UploadPart} requests. S3 verifies the SHA256 checksum of each
+     * part. The multipart upload is aborted if any part fails, so no partial object is left behind.
+     *
+     * @param partSize the preferred part size; it is grown for objects that would otherwise need more parts
+     *                 than S3 allows.
+     * @param partBody supplies the body of the part with the given offset and length.
+     */
+    protected void putObjectMultipart(String key, long size, long partSize,
+                                      BiFunction<Long, Long, RequestBody> partBody) {
+        String uploadId = createMultipartUpload(key);
+        try {
+            long objectPartSize = getPartSize(size, partSize);
+            List<CompletedPart> parts = new ArrayList<>();
+            int partNumber = 1;
+            for (long offset = 0; offset < size; offset += objectPartSize, partNumber++) {
+                long length = Math.min(objectPartSize, size - offset);
+                parts.add(uploadPart(key, uploadId, partNumber, partBody.apply(offset, length)));
+            }
+
+            completeMultipartUpload(key, uploadId, parts);
+        } catch (SdkException | UncheckedIOException e) {
+            abortMultipartUpload(key, uploadId);
+            throw e;
+        }
+    }
+
+    /**
+     * Uploads a single part of a multipart upload. S3 verifies the part's SHA256 checksum.
+     */
+    protected CompletedPart uploadPart(String key, String uploadId, int partNumber, RequestBody body) {
+        UploadPartRequest partRequest = UploadPartRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .uploadId(uploadId)
+                .partNumber(partNumber)
+                .checksumAlgorithm(ChecksumAlgorithm.SHA256)
+                .build();
+
+        UploadPartResponse response = client.uploadPart(partRequest, body);
+        return CompletedPart.builder()
+                .partNumber(partNumber)
+                .eTag(response.eTag())
+                .checksumSHA256(response.checksumSHA256())
+                .build();
+    }
+
+    /**
+     * Uploads an object from memory with a single {@code PutObject} request.
+     */
+    protected void putObject(String key, byte[] content, int length) {
+        putObject(key, content, length, null);
+    }
+
+    /**
+     * Uploads an object from memory with a single {@code PutObject} request.
+     *
+     * @param oid the expected SHA256 checksum of the content, which S3 verifies, or {@code null} if S3 should only
+     *            verify the content against the checksum calculated by the client.
+     */
+    protected void putObject(String key, byte[] content, int length, String oid) {
+        PutObjectRequest request = PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .checksumAlgorithm(ChecksumAlgorithm.SHA256)
+                .checksumSHA256(oid == null ? null : hexToBase64(oid))
+                .build();
+
+        client.putObject(request, RequestBody.fromContentProvider(
+                () -> new ByteArrayInputStream(content, 0, length), length, "application/octet-stream"));
+    }
+
+    /**
+     * Uploads an object from a file with a single {@code PutObject} request. S3 verifies the content against the
+     * given OID.
+     *
+     * @return {@code true} if S3 reported the object's checksum as its OID, otherwise {@code false}.
+     */
+    protected boolean putObject(String key, Path file, String oid) {
+        PutObjectRequest request = PutObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .checksumAlgorithm(ChecksumAlgorithm.SHA256)
+                .checksumSHA256(hexToBase64(oid))
+                .build();
+
+        PutObjectResponse response = client.putObject(request, file);
+        String actualChecksum = base64toHex(response.checksumSHA256());
+        if (!actualChecksum.equalsIgnoreCase(oid)) {
+            System.out.println(" Warning: Object uploaded but has wrong checksum. Expected: "
+                    + oid + " Actual: " + actualChecksum);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the content of an object, discarding it.
+     *
+     * @return the number of bytes read.
+     */
+    protected long readObject(String key) {
+        GetObjectRequest request = GetObjectRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .build();
+
+        try (InputStream inputStream = client.getObject(request)) {
+            return inputStream.transferTo(OutputStream.nullOutputStream());
+        } catch (IOException e) {
+            throw SdkClientException.create("Failure reading " + key, e);
+        }
+    }
+
+    protected String createMultipartUpload(String key) {
+        CreateMultipartUploadRequest request = CreateMultipartUploadRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .checksumAlgorithm(ChecksumAlgorithm.SHA256)
+                .build();
+
+        return client.createMultipartUpload(request).uploadId();
+    }
+
+    protected void completeMultipartUpload(String key, String uploadId, List<CompletedPart> parts) {
+        client.completeMultipartUpload(CompleteMultipartUploadRequest.builder()
+                .bucket(bucket)
+                .key(key)
+                .uploadId(uploadId)
+                .multipartUpload(CompletedMultipartUpload.builder().parts(parts).build())
+                .build());
+    }
+
+    protected void abortMultipartUpload(String key, String uploadId) {
+        try {
+            client.abortMultipartUpload(AbortMultipartUploadRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .uploadId(uploadId)
+                    .build());
+        } catch (SdkException e) {
+            // The original failure is more useful so only report this one
+            System.err.println("  Error: Failure when aborting upload of " + key + ": " + e.getMessage());
+        }
+    }
+
     /**
      * Downloads all LFS objects under the given hierarchy.
      * <p>
      * LFS objects are stored with structure {@code <hierarchy dir>/<oid[0:2]>/<oid[2:63]>} where OID is
-     * the SHA256 checksum of the object.
+     * the SHA256 checksum of the object. Objects are downloaded by up to {@code threads} threads at once.
+     *
+     * @param committer the committer which makes downloaded objects durable before they are given their final
+     *                  names, or {@code null} if objects should be written directly to their final names.
      */
-    protected TransferSummary downloadHierarchy(String hierarchy, Path hierarchyDir) {
+    protected TransferSummary downloadHierarchy(String hierarchy, Path hierarchyDir, GroupCommitter committer,
+                                                int threads) {
         TransferSummary summary = new TransferSummary();
+        if (Files.isDirectory(hierarchyDir)) {
+            deleteTempFiles(hierarchyDir);
+        }
 
-        listObjects(BUCKET_KEY_PREFIX + "/" + hierarchy).stream()
+        Stream<S3Object> objects = listObjects(BUCKET_KEY_PREFIX + "/" + hierarchy).stream()
                 .flatMap(resp -> resp.contents().stream())
-                .forEach(object -> {
-                    String key = object.key(); // Of the form git-lfs/<hierarchy>/<sha256[0:1]>/sha256[2:63]
-                    String[] keySplit = key.split("/");
-                    String oidLevel1 = keySplit[2];
-                    String oidLevel2 = keySplit[3];
-
-                    Path oidLevel1Dir = hierarchyDir.resolve(oidLevel1);
-                    if (!Files.exists(oidLevel1Dir) || !Files.isDirectory(oidLevel1Dir)) {
-                        oidLevel1Dir.toFile().mkdirs();
-                    }
+                .filter(object -> isExpectedKey(object.key(), summary));
+        forEachParallel(objects, threads, object -> {
+            long start = System.nanoTime();
+            RequestAttemptCounter.reset();
 
-                    Path file = oidLevel1Dir.resolve(oidLevel2);
-                    if (Files.exists(file)) {
-                        summary.incrementSuccessful();
-                    } else {
-                        boolean success = downloadObject(file, key);
-                        if (success) {
-                            summary.incrementSuccessful();
-                        } else {
-                            summary.incrementFailed();
-                        }
-                    }
-                });
+            String key = object.key(); // Of the form git-lfs/<hierarchy>/<sha256[0:1]>/sha256[2:63]
+            String[] keySplit = key.split("/");
+            String oidLevel1 = keySplit[2];
+            String oidLevel2 = keySplit[3];
+
+            Path oidLevel1Dir = hierarchyDir.resolve(oidLevel1);
+            if (!Files.exists(oidLevel1Dir) || !Files.isDirectory(oidLevel1Dir)) {
+                oidLevel1Dir.toFile().mkdirs();
+            }
+
+            // The outcome may be recorded by the committer's thread, so the attempts are passed explicitly
+            BiConsumer<Outcome, Integer> record = (outcome, attempts) -> {
+                if (outcome == Outcome.FAILED) {
+                    summary.incrementFailed();
+                } else {
+                    summary.incrementSuccessful();
+                }
+                logTransfer(Operation.DOWNLOAD, hierarchy, oidLevel1 + oidLevel2, object.size(), outcome,
+                        start, attempts);
+            };
+
+            Path file = oidLevel1Dir.resolve(oidLevel2);
+            if (Files.exists(file)) {
+                record.accept(Outcome.SKIPPED, RequestAttemptCounter.get());
+            } else if (committer == null) {
+                boolean success = downloadObject(file, key);
+                record.accept(success ? Outcome.SUCCESSFUL : Outcome.FAILED, RequestAttemptCounter.get());
+            } else {
+                // The temporary name never matches an OID, so an interrupted download is never mistaken
+                // for a complete one. It is overwritten if the object is downloaded again.
+                Path tempFile = oidLevel1Dir.resolve("." + oidLevel2 + ".tmp");
+                boolean success = downloadObject(tempFile, key);
+                int attempts = RequestAttemptCounter.get();
+                if (success) {
+                    committer.commit(tempFile, file, committed ->
+                            record.accept(committed ? Outcome.SUCCESSFUL : Outcome.FAILED, attempts));
+                } else {
+                    record.accept(Outcome.FAILED, attempts);
+                }
+            }
+        }, object -> summary.incrementFailed());
+
+        if (committer != null) {
+            // Wait for this hierarchy's downloads to be committed so they are included in its summary
+            committer.flush();
+        }
 
         return summary;
     }
 
+    /**
+     * Deletes the temporary files of downloads which were interrupted, for example by a crash, before they were
+     * committed. Their objects are downloaded again.
+     */
+    private static void deleteTempFiles(Path hierarchyDir) {
+        // Java is not smart enough to close streams that need to release file descriptors
+        // so use try-with-resources
+        try (Stream<Path> hierarchyDirStream = getDirStream(hierarchyDir, OID_LEVEL1_PATTERN)) {
+            hierarchyDirStream.forEach(objectDir -> {
+                try (Stream<Path> tempFiles = getDirStream(objectDir, TEMP_FILE_PATTERN)) {
+                    tempFiles.forEach(tempFile -> {
+                        try {
+                            Files.deleteIfExists(tempFile);
+                        } catch (IOException e) {
+                            System.err.println("  Error: Failure when deleting " + tempFile + ": " + e.getMessage());
+                        }
+                    });
+                }
+            });
+        }
+    }
+
     /**
      @return {@code true} if the download was successful, otherwise {@code false}.
      */
@@ -119,13 +666,19 @@ public class S3TransferManagerHelper {
                     .checksumMode(ChecksumMode.ENABLED)
                     .build();
 
-            ResponseBytes<GetObjectResponse> objectBytes = client.getObjectAsBytes(request);
-
-            try (FileOutputStream outputStream = new FileOutputStream(objectPath.toFile())) {
-                outputStream.write(objectBytes.asByteArray());
+            // Stream the body to disk, so parallel downloads of large objects aren't held in memory
+            try (ResponseInputStream<GetObjectResponse> inputStream = client.getObject(request)) {
+                Files.copy(inputStream, objectPath, StandardCopyOption.REPLACE_EXISTING);
             }
-        } catch (S3Exception | IOException e) {
+        } catch (SdkException | IOException | UncheckedIOException e) {
             System.err.println("  Error: Failure when downloading " +  key + ": " + e.getMessage());
+            // A partial file would otherwise be skipped as already downloaded on the next run
+            try {
+                Files.deleteIfExists(objectPath);
+            } catch (IOException deleteException) {
+                System.err.println("  Error: Failure when deleting " + objectPath + ": " +
+                        deleteException.getMessage());
+            }
             return false;
         }
 
@@ -138,7 +691,16 @@ public class S3TransferManagerHelper {
     protected List<String> getHierarchies() {
         return listHierarchies().stream()
                 .flatMap(resp -> resp.commonPrefixes().stream())
-                .map(prefix -> prefix.prefix().split("/")[1])
+                // Common prefixes are of the form git-lfs/<hierarchy>/
+                .map(prefix -> prefix.prefix().substring(BUCKET_KEY_PREFIX.length() + 1, prefix.prefix().length() - 1))
+                .filter(hierarchy -> {
+                    if (HIERARCHY_ID_PATTERN.matcher(hierarchy).matches()) {
+                        return true;
+                    }
+                    System.out.println("Warning: Ignoring " + BUCKET_KEY_PREFIX + "/" + hierarchy +
+                            "/ which is not an LFS hierarchy");
+                    return false;
+                })
                 .collect(Collectors.toList());
     }
 
@@ -187,44 +749,64 @@ public class S3TransferManagerHelper {
      * @return {@code true} if the object exists in the bucket, otherwise {@code false}.
      */
     protected boolean objectExists(Path objectPath, String hierarchy) {
-        String oid = pathToOid(objectPath);
+        return objectExists(toKey(hierarchy, pathToOid(objectPath)));
+    }
+
+    /**
+     * @return {@code true} if an object with the given key exists in the bucket, otherwise {@code false}.
+     */
+    protected boolean objectExists(String key) {
+        return getObjectSize(key) >= 0;
+    }
+
+    /**
+     * @return the size of the object with the given key, or {@code -1} if it does not exist in the bucket or could
+     *         not be checked.
+     */
+    protected long getObjectSize(String key) {
         HeadObjectRequest request = HeadObjectRequest.builder()
                 .bucket(bucket)
-                .key(toKey(hierarchy, oid))
+                .key(key)
                 .build();
 
         try {
-            client.headObject(request);
+            return client.headObject(request).contentLength();
         } catch (NoSuchKeyException ignored) {
-            return false;
-        } catch (S3Exception e) {
-            System.err.println("  Error: Failure when reading from bucket for " +  oid + ": " + e.getMessage());
-            return false;
+            return -1;
+        } catch (SdkException e) {
+            System.err.println("  Error: Failure when reading from bucket for " +  key + ": " + e.getMessage());
+            return -1;
         }
-
-        return true;
     }
 
     /**
+     * When local objects are verified, objects uploaded in parts are checked against their OID first since S3 only
+     * verifies them part by part. Objects uploaded with a single request are verified by S3 instead, and their OID
+     * is then remembered as their digest.
+     *
+     * @param size the size of the local object.
      * @return {@code true} if the upload was successful, otherwise {@code false}.
      */
-    protected boolean uploadObject(Path objectPath, String hierarchy) {
+    protected boolean uploadObject(Path objectPath, String hierarchy, long size) {
         String oid = pathToOid(objectPath);
         try {
-            PutObjectRequest request = PutObjectRequest.builder()
-                    .bucket(bucket)
-                    .key(toKey(hierarchy, oid))
-                    .checksumAlgorithm(ChecksumAlgorithm.SHA256)
-                    .checksumSHA256(hexToBase64(oid))
-                    .build();
+            if (size > multipartThreshold) {
+                if (digestCache != null && !verifyLocalObject(digestCache, objectPath, oid)) {
+                    return false;
+                }
+                putObjectMultipart(toKey(hierarchy, oid), size, partSize, (offset, length) ->
+                        RequestBody.fromContentProvider(() -> new FileRangeInputStream(objectPath, offset, length),
+                                length, "application/octet-stream"));
+                return true;
+            }
 
-            PutObjectResponse response = client.putObject(request, objectPath);
-            String actualChecksum = base64toHex(response.checksumSHA256());
-            if (!actualChecksum.equalsIgnoreCase(oid)) {
-                System.out.println(" Warning: Object uploaded but has wrong checksum. Expected: "
-                        + oid + " Actual: " + actualChecksum);
+            // Read before uploading, so a file modified during the upload is hashed next time it is verified
+            BasicFileAttributes attributes = digestCache == null ? null :
+                    Files.readAttributes(objectPath, BasicFileAttributes.class);
+            if (putObject(toKey(hierarchy, oid), objectPath, oid) && attributes != null) {
+                digestCache.remember(objectPath, attributes, oid);
             }
-        } catch (S3Exception e) {
+        } catch (SdkException | IOException | UncheckedIOException e) {
             System.err.println("  Error: Failure when uploading " +  oid + ": " + e.getMessage());
             return false;
         }
@@ -232,40 +814,127 @@ public class S3TransferManagerHelper {
         return true;
     }
 
+    /**
+     * Checks the given local object against its OID, reporting it if it does not match.
+     *
+     * @return {@code true} if the object matches its OID, otherwise {@code false}.
+     */
+    protected static boolean verifyLocalObject(DigestCache digestCache, Path objectPath, String oid) {
+        try {
+            String actualDigest = digestCache.sha256Hex(objectPath);
+            if (actualDigest.equals(oid)) {
+                return true;
+            }
+            System.err.println("  Error: Local object " + oid + " does not match its OID. Actual: " + actualDigest);
+        } catch (IOException e) {
+            System.err.println("  Error: Failure when reading " + oid + ": " + e.getMessage());
+        }
+        return false;
+    }
+
     /**
      * Uploads all LFS objects under the given hierarchy.
      * <p>
      * LFS objects are stored with structure {@code <hierarchy dir>/<oid[0:2]>/<oid[2:63]>} where OID is
-     * the SHA256 checksum of the object.
+     * the SHA256 checksum of the object. Objects are uploaded by up to {@code threads} threads at once.
      */
-    protected TransferSummary uploadHierarchy(Path hierarchyDir) {
+    protected TransferSummary uploadHierarchy(Path hierarchyDir, int threads) {
         TransferSummary summary = new TransferSummary();
+        String hierarchy = hierarchyDir.getFileName().toString();
 
         // Java is not smart enough to close streams that need to release file descriptors
         // so use try-with-resources
         try (Stream<Path> hierarchyDirStream = getDirStream(hierarchyDir, OID_LEVEL1_PATTERN)) {
-            hierarchyDirStream.forEach(objectDir -> {
-                try (Stream<Path> fileStream = getDirStream(objectDir, OID_LEVEL2_PATTERN)) {
-                    fileStream.forEach(file -> {
-                        String hierarchy = hierarchyDir.getFileName().toString();
-                        if (objectExists(file, hierarchy)) {
-                            summary.incrementSkipped();
-                        } else {
-                            boolean success = uploadObject(file, hierarchy);
-                            if (success) {
-                                summary.incrementSuccessful();
-                            } else {
-                                summary.incrementFailed();
-                            }
-                        }
-                    });
+            // flatMap closes each object directory's stream once its files have been consumed
+            Stream<Path> files = hierarchyDirStream.flatMap(objectDir -> getDirStream(objectDir, OID_LEVEL2_PATTERN));
+            forEachParallel(files, threads, file -> {
+                long start = System.nanoTime();
+                RequestAttemptCounter.reset();
+
+                String oid = pathToOid(file);
+                Outcome outcome;
+                // Both checks return the size, so the transfer log never needs to read it separately
+                long size = getObjectSize(toKey(hierarchy, oid));
+                if (size >= 0) {
+                    // Objects already in the bucket are still verified, so the whole local store is checked
+                    if (digestCache == null || verifyLocalObject(digestCache, file, oid)) {
+                        summary.incrementSkipped();
+                        outcome = Outcome.SKIPPED;
+                    } else {
+                        summary.incrementFailed();
+                        outcome = Outcome.FAILED;
+                    }
+                } else {
+                    size = fileSize(file);
+                    if (size < 0) {
+                        System.err.println("  Error: Failure when reading " + oid);
+                    }
+                    boolean success = size >= 0 && uploadObject(file, hierarchy, size);
+                    if (success) {
+                        summary.incrementSuccessful();
+                        outcome = Outcome.SUCCESSFUL;
+                    } else {
+                        summary.incrementFailed();
+                        outcome = Outcome.FAILED;
+                    }
                 }
-            });
+                logTransfer(Operation.UPLOAD, hierarchy, oid, size, outcome, start);
+            }, file -> summary.incrementFailed());
         }
 
         return summary;
     }
 
+    /**
+     * @return the given part size, grown if necessary so an object of the given size fits within the maximum number
+     *         of parts and shrunk to no less than the minimum part size.
+     */
+    protected static long getPartSize(long size, long partSize) {
+        return Math.max(MIN_PART_SIZE, Math.max(partSize, (size + MAX_PARTS - 1) / MAX_PARTS));
+    }
+
+    /**
+     * Records the outcome of processing a single object in the transfer log, if there is one.
+     *
+     * @param size the size of the object, which should already be known so recording it costs no I/O.
+     */
+    protected void logTransfer(Operation operation, String hierarchy, String oid, long size, Outcome outcome,
+                               long startNanos) {
+        logTransfer(operation, hierarchy, oid, size, outcome, startNanos, RequestAttemptCounter.get());
+    }
+
+    protected void logTransfer(Operation operation, String hierarchy, String oid, long size, Outcome outcome,
+                               long startNanos, int attempts) {
+        if (transferLog != null) {
+            transferLog.log(operation, bucket, hierarchy, oid, size, outcome,
+                    System.nanoTime() - startNanos, attempts);
+        }
+    }
+
+    /**
+     * @return the size of the given file, or {@code -1} if it cannot be read.
+     */
+    private static long fileSize(Path file) {
+        try {
+            return Files.size(file);
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static void writeReport(Writer report, String key) {
+        if (report == null) {
+            return;
+        }
+
+        try {
+            report.write(key);
+            report.write('\n');
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
     /**
      * Convert base64 SHA256 checksum to hex. We always want to use the hex encoding for any user logging since
      * the file names of LFS objects and associated LFS REST API use this encoding.
@@ -289,16 +958,94 @@ public class S3TransferManagerHelper {
     /**
      * Constructs an LFS object ID from the given object path.
      */
-    private static String pathToOid(Path objectPath) {
+    protected static String pathToOid(Path objectPath) {
         int pathNameCount = objectPath.getNameCount();
         return String.valueOf(objectPath.subpath(pathNameCount - 2, pathNameCount - 1))
                 + objectPath.subpath(pathNameCount - 1, pathNameCount);
     }
 
+    /**
+     * Keys which were not written by Bitbucket, such as {@code git-lfs/<hierarchy>/notes.txt}, are not LFS objects
+     * so they are reported and left out of a transfer rather than failing it.
+     */
+    private static boolean isExpectedKey(String key, TransferSummary summary) {
+        if (isObjectKey(key)) {
+            return true;
+        }
+        System.out.println("  Warning: Ignoring unexpected key " + key);
+        summary.incrementIgnored();
+        return false;
+    }
+
+    /**
+     * @return {@code true} if the given S3 object key is of the form
+     * {@code git-lfs/<hierarchy>/<sha256[0:1]>/<sha256[2:63]>}.
+     */
+    private static boolean isObjectKey(String key) {
+        String[] keySplit = key.split("/", -1);
+        return keySplit.length == 4 && OID_LEVEL1_PATTERN.matcher(keySplit[2]).matches() &&
+                OID_LEVEL2_PATTERN.matcher(keySplit[3]).matches();
+    }
+
+    /**
+     * Constructs an LFS object ID from the given S3 object key of the form
+     * {@code git-lfs/<hierarchy>/<sha256[0:1]>/sha256[2:63]}.
+     */
+    private static String keyToOid(String key) {
+        String[] keySplit = key.split("/");
+        return keySplit[2] + keySplit[3];
+    }
+
     /**
      * Constructs a key for an S3 object from the given hierarchy and object ID.
      */
-    private static String toKey(String hierarchy, String oid) {
+    protected static String toKey(String hierarchy, String oid) {
         return BUCKET_KEY_PREFIX + "/" + hierarchy + "/" + oid.substring(0, 2) + "/" + oid.substring(2);
     }
+
+    /**
+     * Reads a range of a file using positional reads, so each part of a multipart upload can be read independently
+     * and re-read if the SDK retries the part.
+     */
+    private static final class FileRangeInputStream extends InputStream {
+
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        private FileRangeInputStream(Path file, long offset, long length) {
+            try {
+                channel = FileChannel.open(file, StandardOpenOption.READ);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            position = offset;
+            remaining = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) {
+                return -1;
+            }
+
+            int read = channel.read(ByteBuffer.wrap(b, off, (int) Math.min(len, remaining)), position);
+            if (read > 0) {
+                position += read;
+                remaining -= read;
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
 }
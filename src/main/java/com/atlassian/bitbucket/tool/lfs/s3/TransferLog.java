@@ -0,0 +1,285 @@
+/*
+ * Copyright 2023 Atlassian
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.atlassian.bitbucket.tool.lfs.s3;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes a structured record of every object transfer to a JSON lines file.
+ * <p>
+ * Transfer threads never block on the log: events are placed on a bounded lock-free ring buffer and written by
+ * a single background thread, which drains them in batches through a buffered writer. If the buffer is ever full
+ * the event is dropped and counted rather than stalling the transfer. The file is rotated once it reaches the
+ * configured size, keeping a fixed number of older files named {@code <file>.1}, {@code <file>.2} and so on.
+ */
+public class TransferLog implements AutoCloseable {
+
+    public enum Operation {
+        COPY,
+        DOWNLOAD,
+        UPLOAD
+    }
+
+    public enum Outcome {
+        FAILED,
+        SKIPPED,
+        SUCCESSFUL
+    }
+
+    private static final int BUFFER_CAPACITY = 1 << 16;
+    private static final int MAX_BATCH_SIZE = 4096;
+    private static final int WRITER_BUFFER_SIZE = 256 * 1024;
+    private static final long IDLE_PARK_NANOS = 10_000_000L;
+
+    private final RingBuffer buffer = new RingBuffer(BUFFER_CAPACITY);
+    private final LongAdder dropped = new LongAdder();
+    private final Path file;
+    private final long maxFileSize;
+    private final int maxFiles;
+    private final Thread writerThread;
+
+    private volatile boolean closed;
+    private BufferedWriter writer;
+    private long fileSize;
+
+    /**
+     * @param maxFileSize the size in bytes at which the log file is rotated, which must be positive.
+     * @param maxFiles    the number of rotated log files to keep, which must be at least one.
+     */
+    public TransferLog(Path file, long maxFileSize, int maxFiles) throws IOException {
+        if (maxFileSize < 1) {
+            throw new IllegalArgumentException("The maximum transfer log file size must be positive");
+        }
+        if (maxFiles < 1) {
+            throw new IllegalArgumentException("At least one rotated transfer log file must be kept");
+        }
+        this.file = file;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+
+        openWriter();
+        writerThread = new Thread(this::runWriter, "transfer-log-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Records the outcome of a single object transfer. This never blocks.
+     *
+     * @param bucket       the bucket the object was transferred to or, for downloads, from.
+     * @param latencyNanos the time taken to process the object, including checking whether it already exists.
+     * @param attempts     the number of S3 request attempts made for the object, including retries.
+     */
+    public void log(Operation operation, String bucket, String hierarchy, String oid, long size, Outcome outcome,
+                    long latencyNanos, int attempts) {
+        Event event = new Event(System.currentTimeMillis(), operation, bucket, hierarchy, oid, size, outcome,
+                latencyNanos, attempts);
+        if (closed || !buffer.offer(event)) {
+            dropped.increment();
+        }
+    }
+
+    /**
+     * Writes any buffered events and closes the log file.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        long droppedCount = getDroppedCount();
+        if (droppedCount > 0) {
+            System.err.println(" Warning: " + droppedCount + " transfer log events were dropped");
+        }
+    }
+
+    /**
+     * @return the number of events which were not written because the buffer was full or the log was closed.
+     */
+    public long getDroppedCount() {
+        return dropped.sum();
+    }
+
+    private void runWriter() {
+        try {
+            boolean drained;
+            do {
+                // Read the flag before draining so events offered before close() are always written
+                boolean closing = closed;
+                drained = writeBatch() == 0 && closing;
+            } while (!drained);
+        } catch (IOException e) {
+            System.err.println("  Error: Failure when writing transfer log " + file + ": " + e.getMessage());
+        } finally {
+            try {
+                writer.close();
+            } catch (IOException ignored) {
+                // Nothing more can be done with the log at this point
+            }
+        }
+    }
+
+    /**
+     * @return the number of events written.
+     */
+    private int writeBatch() throws IOException {
+        int count = 0;
+        Event event;
+        while (count < MAX_BATCH_SIZE && (event = buffer.poll()) != null) {
+            String line = event.toJson();
+            writer.write(line);
+            writer.write('\n');
+            fileSize += line.length() + 1;
+            count++;
+
+            if (fileSize >= maxFileSize) {
+                rotate();
+            }
+        }
+
+        if (count > 0) {
+            writer.flush();
+        } else if (!closed) {
+            LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+        }
+        return count;
+    }
+
+    private void openWriter() throws IOException {
+        writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(file,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8), WRITER_BUFFER_SIZE);
+        fileSize = Files.size(file);
+    }
+
+    private void rotate() throws IOException {
+        writer.close();
+        for (int i = maxFiles - 1; i >= 1; i--) {
+            Path older = rotatedFile(i);
+            if (Files.exists(older)) {
+                Files.move(older, rotatedFile(i + 1), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, rotatedFile(1), StandardCopyOption.REPLACE_EXISTING);
+        openWriter();
+    }
+
+    private Path rotatedFile(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private static final class Event {
+
+        private final long timestamp;
+        private final Operation operation;
+        private final String bucket;
+        private final String hierarchy;
+        private final String oid;
+        private final long size;
+        private final Outcome outcome;
+        private final long latencyNanos;
+        private final int attempts;
+
+        private Event(long timestamp, Operation operation, String bucket, String hierarchy, String oid, long size,
+                      Outcome outcome, long latencyNanos, int attempts) {
+            this.timestamp = timestamp;
+            this.operation = operation;
+            this.bucket = bucket;
+            this.hierarchy = hierarchy;
+            this.oid = oid;
+            this.size = size;
+            this.outcome = outcome;
+            this.latencyNanos = latencyNanos;
+            this.attempts = attempts;
+        }
+
+        // Bucket names are limited to letters, digits, dots and hyphens, while hierarchy IDs and OIDs are
+        // hexadecimal strings, so none of the values need escaping
+        private String toJson() {
+            return "{\"time\":\"" + Instant.ofEpochMilli(timestamp)
+                    + "\",\"operation\":\"" + operation.name().toLowerCase(Locale.ROOT)
+                    + "\",\"bucket\":\"" + bucket
+                    + "\",\"hierarchy\":\"" + hierarchy
+                    + "\",\"oid\":\"" + oid
+                    + "\",\"size\":" + size
+                    + ",\"outcome\":\"" + outcome.name().toLowerCase(Locale.ROOT)
+                    + "\",\"latencyMicros\":" + latencyNanos / 1000
+                    + ",\"attempts\":" + attempts + "}";
+        }
+    }
+
+    /**
+     * A bounded multi-producer, single-consumer ring buffer. Producers claim a slot by advancing the producer index
+     * and then publish the event into it; the consumer clears a slot before releasing it back to the producers.
+     */
+    private static final class RingBuffer {
+
+        private final AtomicReferenceArray<Event> slots;
+        private final AtomicLong producerIndex = new AtomicLong();
+        private final AtomicLong consumerIndex = new AtomicLong();
+        private final int capacity;
+        private final int mask;
+
+        private RingBuffer(int capacity) {
+            this.capacity = capacity;
+            this.mask = capacity - 1;
+            this.slots = new AtomicReferenceArray<>(capacity);
+        }
+
+        private boolean offer(Event event) {
+            long index;
+            do {
+                index = producerIndex.get();
+                if (index - consumerIndex.get() >= capacity) {
+                    return false;
+                }
+            } while (!producerIndex.compareAndSet(index, index + 1));
+
+            slots.lazySet((int) (index & mask), event);
+            return true;
+        }
+
+        private Event poll() {
+            long index = consumerIndex.get();
+            int slot = (int) (index & mask);
+            // A null slot means either the buffer is empty or a producer has claimed it but not yet published
+            Event event = slots.get(slot);
+            if (event == null) {
+                return null;
+            }
+            slots.lazySet(slot, null);
+            consumerIndex.lazySet(index + 1);
+            return event;
+        }
+    }
+}
@@ -1,51 +1,66 @@
 package com.atlassian.bitbucket.tool.lfs.s3;
 
 import java.nio.file.Path;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
- * Summarizes the results of {@link S3TransferManager#upload(Path)}'s and {@link S3TransferManager#download(Path)}'s.
+ * Summarizes the results of {@link S3TransferManager#upload(Path)}'s, {@link S3TransferManager#download(Path)}'s
+ * and {@link S3TransferManager#copy()}'s.
+ * <p>
+ * Counts may be incremented concurrently by multiple transfer threads.
  */
 public class TransferSummary {
 
-    private long failed;
-    private long skipped;
-    private long successful;
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder ignored = new LongAdder();
+    private final LongAdder skipped = new LongAdder();
+    private final LongAdder successful = new LongAdder();
 
     public void add(TransferSummary summary) {
-        this.failed += summary.failed;
-        this.skipped += summary.skipped;
-        this.successful += summary.successful;
+        this.failed.add(summary.getFailed());
+        this.ignored.add(summary.getIgnored());
+        this.skipped.add(summary.getSkipped());
+        this.successful.add(summary.getSuccessful());
     }
 
     public long getFailed() {
-        return failed;
+        return failed.sum();
+    }
+
+    public long getIgnored() {
+        return ignored.sum();
     }
 
     public long getSkipped() {
-        return skipped;
+        return skipped.sum();
     }
 
     public long getSuccessful() {
-        return successful;
+        return successful.sum();
     }
 
     public void incrementFailed() {
-        failed++;
+        failed.increment();
+    }
+
+    public void incrementIgnored() {
+        ignored.increment();
     }
 
     public void incrementSkipped() {
-        skipped++;
+        skipped.increment();
     }
 
     public void incrementSuccessful() {
-        successful++;
+        successful.increment();
     }
 
     @Override
     public String toString() {
         return String.format("- Successful: %d%n"
                 + "- Skipped (already exists): %d%n"
-                + "- Failed: %d",
-                successful, skipped, failed);
+                + "- Failed: %d%n"
+                + "- Ignored (unexpected key): %d",
+                getSuccessful(), getSkipped(), getFailed(), getIgnored());
     }
 }
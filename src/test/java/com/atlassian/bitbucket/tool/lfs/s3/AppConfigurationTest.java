@@ -0,0 +1,49 @@
+package com.atlassian.bitbucket.tool.lfs.s3;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.Assert.assertEquals;
+
+public class AppConfigurationTest {
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void testCalibrationFileProvidesDefaults() throws IOException {
+        Path calibrationFile = writeFile("calibration.properties",
+                "threads=32",
+                "max-connections=32",
+                "multipart.part-size=8388608");
+        Path configFile = writeFile("config.properties",
+                "calibration.file=" + calibrationFile,
+                "threads=4");
+
+        AppConfiguration config = new AppConfiguration(configFile.toString());
+
+        // The configuration file takes precedence over the calibration file
+        assertEquals(4, config.getThreads());
+        assertEquals(32, config.getMaxConnections());
+        assertEquals(8388608, config.getMultipartPartSize());
+    }
+
+    @Test
+    public void testDefaultsWithoutCalibrationFile() throws IOException {
+        Path configFile = writeFile("config.properties", "threads=64");
+
+        AppConfiguration config = new AppConfiguration(configFile.toString());
+
+        assertEquals(64, config.getThreads());
+        assertEquals(64, config.getMaxConnections());
+    }
+
+    private Path writeFile(String name, String... lines) throws IOException {
+        return Files.write(tmpFolder.getRoot().toPath().resolve(name), String.join("\n", lines).getBytes());
+    }
+}
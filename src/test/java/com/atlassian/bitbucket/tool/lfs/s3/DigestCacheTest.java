@@ -0,0 +1,171 @@
+package com.atlassian.bitbucket.tool.lfs.s3;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DigestCacheTest {
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void testRemembersDigestAfterReopen() throws IOException {
+        Path cacheFile = tmpFolder.getRoot().toPath().resolve("digests.bin");
+        Path object = writeObject("object", "content");
+
+        try (DigestCache cache = new DigestCache(cacheFile)) {
+            assertEquals(DigestUtils.sha256Hex("content"), cache.sha256Hex(object));
+            assertEquals(0, cache.getHits());
+            assertEquals(1, cache.getMisses());
+        }
+
+        try (DigestCache cache = new DigestCache(cacheFile)) {
+            assertEquals(DigestUtils.sha256Hex("content"), cache.sha256Hex(object));
+            assertEquals(1, cache.getHits());
+            assertEquals(0, cache.getMisses());
+        }
+    }
+
+    @Test
+    public void testHashesAgainWhenSizeChanges() throws IOException {
+        Path cacheFile = tmpFolder.getRoot().toPath().resolve("digests.bin");
+        Path object = writeObject("object", "content");
+
+        try (DigestCache cache = new DigestCache(cacheFile)) {
+            cache.sha256Hex(object);
+            FileTime modified = Files.getLastModifiedTime(object);
+            Files.writeString(object, "longer content");
+            Files.setLastModifiedTime(object, modified);
+
+            assertEquals(DigestUtils.sha256Hex("longer content"), cache.sha256Hex(object));
+            assertEquals(0, cache.getHits());
+            assertEquals(2, cache.getMisses());
+        }
+    }
+
+    @Test
+    public void testHashesAgainWhenModifiedTimeChanges() throws IOException {
+        Path cacheFile = tmpFolder.getRoot().toPath().resolve("digests.bin");
+        Path object = writeObject("object", "content");
+
+        try (DigestCache cache = new DigestCache(cacheFile)) {
+            cache.sha256Hex(object);
+            // Same size, so only the modified time tells the cache the content has changed
+            FileTime modified = Files.getLastModifiedTime(object);
+            Files.writeString(object, "CONTENT");
+            Files.setLastModifiedTime(object, FileTime.fromMillis(modified.toMillis() + 10_000));
+
+            assertEquals(DigestUtils.sha256Hex("CONTENT"), cache.sha256Hex(object));
+            assertEquals(0, cache.getHits());
+            assertEquals(2, cache.getMisses());
+        }
+    }
+
+    @Test
+    public void testGrowsPastMaximumLoad() throws IOException {
+        Path cacheFile = tmpFolder.getRoot().toPath().resolve("digests.bin");
+        int objects = 100;
+
+        try (DigestCache cache = new DigestCache(cacheFile, 16)) {
+            for (int i = 0; i < objects; i++) {
+                cache.sha256Hex(writeObject("object-" + i, "content-" + i));
+            }
+            assertEquals(objects, cache.getMisses());
+        }
+        // 100 records at no more than 70% load need at least 256 slots
+        assertTrue(Files.size(cacheFile) >= 64 + 256 * 64);
+
+        try (DigestCache cache = new DigestCache(cacheFile, 16)) {
+            for (int i = 0; i < objects; i++) {
+                Path object = tmpFolder.getRoot().toPath().resolve("object-" + i);
+                assertEquals(DigestUtils.sha256Hex("content-" + i), cache.sha256Hex(object));
+            }
+            assertEquals(objects, cache.getHits());
+            assertEquals(0, cache.getMisses());
+        }
+    }
+
+    @Test
+    public void testRecreatesCorruptFile() throws IOException {
+        Path cacheFile = tmpFolder.getRoot().toPath().resolve("digests.bin");
+        Files.write(cacheFile, new byte[4096]);
+        Path object = writeObject("object", "content");
+
+        try (DigestCache cache = new DigestCache(cacheFile)) {
+            assertEquals(DigestUtils.sha256Hex("content"), cache.sha256Hex(object));
+        }
+        try (DigestCache cache = new DigestCache(cacheFile)) {
+            assertEquals(DigestUtils.sha256Hex("content"), cache.sha256Hex(object));
+            assertEquals(1, cache.getHits());
+        }
+    }
+
+    @Test
+    public void testRecreatesTruncatedFile() throws IOException {
+        Path cacheFile = tmpFolder.getRoot().toPath().resolve("digests.bin");
+        Path object = writeObject("object", "content");
+
+        try (DigestCache cache = new DigestCache(cacheFile, 16)) {
+            cache.sha256Hex(object);
+        }
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() / 2);
+        }
+
+        try (DigestCache cache = new DigestCache(cacheFile, 16)) {
+            assertEquals(DigestUtils.sha256Hex("content"), cache.sha256Hex(object));
+            assertEquals(0, cache.getHits());
+            assertEquals(1, cache.getMisses());
+        }
+        assertEquals(64 + 16 * 64, Files.size(cacheFile));
+    }
+
+    @Test
+    public void testRemembersVerifiedDigest() throws IOException {
+        Path cacheFile = tmpFolder.getRoot().toPath().resolve("digests.bin");
+        Path object = writeObject("object", "content");
+
+        try (DigestCache cache = new DigestCache(cacheFile)) {
+            cache.remember(object, Files.readAttributes(object, BasicFileAttributes.class),
+                    DigestUtils.sha256Hex("content"));
+
+            assertEquals(DigestUtils.sha256Hex("content"), cache.sha256Hex(object));
+            assertEquals(1, cache.getHits());
+            assertEquals(0, cache.getMisses());
+        }
+    }
+
+    @Test
+    public void testHashesEveryTimeWithoutFile() throws IOException {
+        Path object = writeObject("object", "content");
+
+        try (DigestCache cache = new DigestCache(null)) {
+            cache.remember(object, Files.readAttributes(object, BasicFileAttributes.class),
+                    DigestUtils.sha256Hex("content"));
+            assertEquals(DigestUtils.sha256Hex("content"), cache.sha256Hex(object));
+            assertEquals(DigestUtils.sha256Hex("content"), cache.sha256Hex(object));
+            assertEquals(0, cache.getHits());
+            assertEquals(2, cache.getMisses());
+        }
+    }
+
+    private Path writeObject(String name, String content) throws IOException {
+        Path object = tmpFolder.getRoot().toPath().resolve(name);
+        Files.write(object, content.getBytes(StandardCharsets.UTF_8));
+        return object;
+    }
+}
@@ -0,0 +1,137 @@
+package com.atlassian.bitbucket.tool.lfs.s3;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GroupCommitterTest {
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    private final Map<Path, Boolean> outcomes = new ConcurrentHashMap<>();
+
+    @Test
+    public void testCommitsFile() throws IOException {
+        Path dir = tmpFolder.getRoot().toPath();
+        Path tempFile = writeFile(dir.resolve(".object.tmp"), "content");
+        Path targetFile = dir.resolve("object");
+
+        try (GroupCommitter committer = new GroupCommitter(16, 2)) {
+            committer.commit(tempFile, targetFile, committed -> outcomes.put(targetFile, committed));
+            committer.flush();
+
+            assertEquals(Boolean.TRUE, outcomes.get(targetFile));
+        }
+        assertEquals("content", Files.readString(targetFile));
+        assertFalse(Files.exists(tempFile));
+    }
+
+    @Test
+    public void testFailsMissingTempFile() {
+        Path dir = tmpFolder.getRoot().toPath();
+        Path targetFile = dir.resolve("object");
+
+        try (GroupCommitter committer = new GroupCommitter(16, 2)) {
+            committer.commit(dir.resolve(".object.tmp"), targetFile, committed -> outcomes.put(targetFile, committed));
+            committer.flush();
+
+            assertEquals(Boolean.FALSE, outcomes.get(targetFile));
+        }
+        assertFalse(Files.exists(targetFile));
+    }
+
+    @Test
+    public void testDeletesTempFileWhenRenameFails() throws IOException {
+        Path dir = tmpFolder.getRoot().toPath();
+        Path tempFile = writeFile(dir.resolve(".object.tmp"), "content");
+        Path targetFile = dir.resolve("missing").resolve("object");
+
+        try (GroupCommitter committer = new GroupCommitter(16, 2)) {
+            committer.commit(tempFile, targetFile, committed -> outcomes.put(targetFile, committed));
+            committer.flush();
+
+            assertEquals(Boolean.FALSE, outcomes.get(targetFile));
+        }
+        assertFalse(Files.exists(tempFile));
+        assertFalse(Files.exists(targetFile));
+    }
+
+    @Test
+    public void testFlushWaitsForEarlierCommits() throws IOException {
+        Path dir = tmpFolder.getRoot().toPath();
+        int files = 100;
+
+        // Smaller batches than files, so the flush has to wait for several batches
+        try (GroupCommitter committer = new GroupCommitter(8, 4)) {
+            for (int i = 0; i < files; i++) {
+                Path targetFile = dir.resolve("object-" + i);
+                committer.commit(writeFile(dir.resolve(".object-" + i + ".tmp"), "content-" + i), targetFile,
+                        committed -> outcomes.put(targetFile, committed));
+            }
+            committer.flush();
+
+            assertEquals(files, outcomes.size());
+            assertTrue(outcomes.values().stream().allMatch(Boolean::booleanValue));
+        }
+        for (int i = 0; i < files; i++) {
+            assertEquals("content-" + i, Files.readString(dir.resolve("object-" + i)));
+        }
+    }
+
+    @Test
+    public void testFailingCallbackDoesNotStopCommitter() throws IOException {
+        Path dir = tmpFolder.getRoot().toPath();
+        Path failingTarget = dir.resolve("failing");
+        Path targetFile = dir.resolve("object");
+        AtomicInteger failingCalls = new AtomicInteger();
+
+        try (GroupCommitter committer = new GroupCommitter(16, 2)) {
+            committer.commit(writeFile(dir.resolve(".failing.tmp"), "failing"), failingTarget, committed -> {
+                failingCalls.incrementAndGet();
+                throw new IllegalStateException("Callback failed");
+            });
+            committer.flush();
+
+            committer.commit(writeFile(dir.resolve(".object.tmp"), "content"), targetFile,
+                    committed -> outcomes.put(targetFile, committed));
+            committer.flush();
+
+            assertEquals(Boolean.TRUE, outcomes.get(targetFile));
+        }
+        // The callback is not called a second time to report the failure
+        assertEquals(1, failingCalls.get());
+        assertTrue(Files.exists(failingTarget));
+    }
+
+    @Test
+    public void testFailsCommitsAfterClose() throws IOException {
+        Path dir = tmpFolder.getRoot().toPath();
+        Path tempFile = writeFile(dir.resolve(".object.tmp"), "content");
+        Path targetFile = dir.resolve("object");
+
+        GroupCommitter committer = new GroupCommitter(16, 2);
+        committer.close();
+        committer.commit(tempFile, targetFile, committed -> outcomes.put(targetFile, committed));
+        committer.flush();
+
+        assertEquals(Boolean.FALSE, outcomes.get(targetFile));
+        assertFalse(Files.exists(tempFile));
+        assertFalse(Files.exists(targetFile));
+    }
+
+    private static Path writeFile(Path file, String content) throws IOException {
+        return Files.writeString(file, content);
+    }
+}
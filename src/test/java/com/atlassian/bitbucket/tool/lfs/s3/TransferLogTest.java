@@ -0,0 +1,168 @@
+package com.atlassian.bitbucket.tool.lfs.s3;
+
+import com.atlassian.bitbucket.tool.lfs.s3.TransferLog.Operation;
+import com.atlassian.bitbucket.tool.lfs.s3.TransferLog.Outcome;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TransferLogTest {
+
+    private static final String TEST_BUCKET = "bitbucket-object-store";
+    private static final String TEST_HIERARCHY = "1234567890abcdef1234";
+
+    @Rule
+    public TemporaryFolder tmpFolder = new TemporaryFolder();
+
+    @Test
+    public void testWritesEventAsJson() throws IOException {
+        Path file = tmpFolder.getRoot().toPath().resolve("transfers.jsonl");
+
+        try (TransferLog transferLog = new TransferLog(file, 1024 * 1024, 1)) {
+            transferLog.log(Operation.UPLOAD, TEST_BUCKET, TEST_HIERARCHY, oid(1), 1024, Outcome.SUCCESSFUL,
+                    5_321_000, 2);
+        }
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).startsWith("{\"time\":\""));
+        assertTrue(lines.get(0).endsWith("\",\"operation\":\"upload\",\"bucket\":\"" + TEST_BUCKET
+                + "\",\"hierarchy\":\"" + TEST_HIERARCHY + "\",\"oid\":\"" + oid(1)
+                + "\",\"size\":1024,\"outcome\":\"successful\",\"latencyMicros\":5321,\"attempts\":2}"));
+    }
+
+    @Test
+    public void testWritesEveryEventFromConcurrentProducers() throws Exception {
+        Path file = tmpFolder.getRoot().toPath().resolve("transfers.jsonl");
+        int producers = 8;
+        int eventsPerProducer = 5000;
+
+        TransferLog transferLog = new TransferLog(file, Long.MAX_VALUE, 1);
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < eventsPerProducer; i++) {
+                    transferLog.log(Operation.DOWNLOAD, TEST_BUCKET, TEST_HIERARCHY,
+                            oid(producer * eventsPerProducer + i), i, Outcome.SKIPPED, 0, 1);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        transferLog.close();
+
+        // Fewer events were produced than the buffer holds, so none can have been dropped
+        assertEquals(0, transferLog.getDroppedCount());
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(producers * eventsPerProducer, lines.size());
+        Set<String> oids = new HashSet<>();
+        for (String line : lines) {
+            oids.add(line.substring(line.indexOf("\"oid\":\"") + 7, line.indexOf("\",\"size\"")));
+        }
+        assertEquals(producers * eventsPerProducer, oids.size());
+    }
+
+    @Test
+    public void testCloseWritesBufferedEvents() throws IOException {
+        Path file = tmpFolder.getRoot().toPath().resolve("transfers.jsonl");
+
+        TransferLog transferLog = new TransferLog(file, Long.MAX_VALUE, 1);
+        for (int i = 0; i < 10_000; i++) {
+            transferLog.log(Operation.UPLOAD, TEST_BUCKET, TEST_HIERARCHY, oid(i), i, Outcome.SUCCESSFUL, 0, 1);
+        }
+        transferLog.close();
+
+        assertEquals(10_000, Files.readAllLines(file).size());
+    }
+
+    @Test
+    public void testEventsAfterCloseAreDropped() throws IOException {
+        Path file = tmpFolder.getRoot().toPath().resolve("transfers.jsonl");
+
+        TransferLog transferLog = new TransferLog(file, Long.MAX_VALUE, 1);
+        transferLog.close();
+        for (int i = 0; i < 3; i++) {
+            transferLog.log(Operation.UPLOAD, TEST_BUCKET, TEST_HIERARCHY, oid(i), i, Outcome.FAILED, 0, 1);
+        }
+
+        assertEquals(3, transferLog.getDroppedCount());
+        assertEquals(0, Files.readAllLines(file).size());
+    }
+
+    @Test
+    public void testRotatesAndKeepsConfiguredNumberOfFiles() throws IOException {
+        Path file = tmpFolder.getRoot().toPath().resolve("transfers.jsonl");
+        int maxFileSize = 1000;
+
+        try (TransferLog transferLog = new TransferLog(file, maxFileSize, 2)) {
+            for (int i = 0; i < 50; i++) {
+                transferLog.log(Operation.UPLOAD, TEST_BUCKET, TEST_HIERARCHY, oid(i), i, Outcome.SUCCESSFUL, 0, 1);
+            }
+        }
+
+        Path rotated1 = file.resolveSibling("transfers.jsonl.1");
+        Path rotated2 = file.resolveSibling("transfers.jsonl.2");
+        assertTrue(Files.exists(file));
+        assertTrue(Files.exists(rotated1));
+        assertTrue(Files.exists(rotated2));
+        assertFalse(Files.exists(file.resolveSibling("transfers.jsonl.3")));
+        // A file is rotated as soon as it reaches the maximum size
+        assertTrue(Files.size(rotated1) >= maxFileSize);
+        assertTrue(Files.size(rotated1) < maxFileSize + 300);
+
+        // The newest events are in the current file and the oldest in the highest numbered file
+        List<String> current = Files.readAllLines(file);
+        assertTrue(current.get(current.size() - 1).contains(oid(49)));
+        List<String> newest = Files.readAllLines(rotated1);
+        List<String> oldest = Files.readAllLines(rotated2);
+        assertTrue(oidIndex(oldest.get(oldest.size() - 1)) < oidIndex(newest.get(0)));
+    }
+
+    @Test
+    public void testAppendsToExistingFile() throws IOException {
+        Path file = tmpFolder.getRoot().toPath().resolve("transfers.jsonl");
+
+        for (int run = 0; run < 2; run++) {
+            try (TransferLog transferLog = new TransferLog(file, Long.MAX_VALUE, 1)) {
+                transferLog.log(Operation.UPLOAD, TEST_BUCKET, TEST_HIERARCHY, oid(run), 1, Outcome.SUCCESSFUL, 0, 1);
+            }
+        }
+
+        assertEquals(2, Files.readAllLines(file).size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNoRotatedFiles() throws IOException {
+        new TransferLog(tmpFolder.getRoot().toPath().resolve("transfers.jsonl"), 1000, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsNonPositiveMaxFileSize() throws IOException {
+        new TransferLog(tmpFolder.getRoot().toPath().resolve("transfers.jsonl"), 0, 1);
+    }
+
+    private static String oid(int index) {
+        return String.format("%064x", index);
+    }
+
+    private static int oidIndex(String line) {
+        int start = line.indexOf("\"oid\":\"") + 7;
+        return Integer.parseInt(line.substring(start, start + 64), 16);
+    }
+}
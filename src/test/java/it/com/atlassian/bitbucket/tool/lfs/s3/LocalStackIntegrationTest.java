@@ -1,6 +1,7 @@
 package it.com.atlassian.bitbucket.tool.lfs.s3;
 
 import com.atlassian.bitbucket.tool.lfs.s3.AppConfiguration;
+import com.atlassian.bitbucket.tool.lfs.s3.PruneSummary;
 import com.atlassian.bitbucket.tool.lfs.s3.S3TransferManager;
 import com.atlassian.bitbucket.tool.lfs.s3.TransferSummary;
 import org.apache.commons.codec.digest.DigestUtils;
@@ -13,13 +14,18 @@ import org.testcontainers.containers.localstack.LocalStackContainer;
 import org.testcontainers.utility.DockerImageName;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
+import software.amazon.awssdk.core.sync.RequestBody;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.s3.S3Client;
 import software.amazon.awssdk.services.s3.model.CreateBucketRequest;
 import software.amazon.awssdk.services.s3.model.CreateBucketResponse;
 import software.amazon.awssdk.services.s3.model.GetObjectRequest;
+import software.amazon.awssdk.services.s3.model.HeadObjectRequest;
 import software.amazon.awssdk.services.s3.model.ListBucketsRequest;
 import software.amazon.awssdk.services.s3.model.ListBucketsResponse;
+import software.amazon.awssdk.services.s3.model.ListObjectsV2Request;
+import software.amazon.awssdk.services.s3.model.NoSuchKeyException;
+import software.amazon.awssdk.services.s3.model.PutObjectRequest;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -28,16 +34,22 @@ import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
 import java.util.UUID;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
 import static org.testcontainers.containers.localstack.LocalStackContainer.Service.S3;
 
 public class LocalStackIntegrationTest {
 
     private static final String TEST_HIERARCHY = "1234567890abcdef1234";
     private static final String TEST_BUCKET = "bitbucket-object-store";
+    private static final String TEST_TARGET_BUCKET = "bitbucket-object-store-target";
     private static final String TEST_CONFIG_FILENAME = "config.properties";
     private static final String LFS_DIR = "shared/data/git-lfs/storage";
 
@@ -93,6 +105,240 @@ public class LocalStackIntegrationTest {
         assertEquals(randomContent.toString(), downloadObject(oid));
     }
 
+    @Test
+    public void testMultipartMigration() throws IOException {
+        Path homeDir = tmpFolder.newFolder().toPath();
+        Path configFile = writeConfigFile(homeDir,
+                "threads=4",
+                "multipart.threshold=" + 5 * 1024 * 1024,
+                "multipart.part-size=" + 5 * 1024 * 1024);
+        Path storageDir = homeDir.resolve(LFS_DIR);
+
+        // The small object is uploaded with a single request and the large one in two parts
+        String smallContent = UUID.randomUUID().toString();
+        String smallOid = writeObject(storageDir, smallContent);
+        String largeContent = UUID.randomUUID() + "x".repeat(6 * 1024 * 1024);
+        String largeOid = writeObject(storageDir, largeContent);
+
+        // Perform migration
+        AppConfiguration config = new AppConfiguration(configFile.toString());
+        TransferSummary summary;
+        try (S3TransferManager s3TransferManager = new S3TransferManager(config)) {
+            summary = s3TransferManager.upload(storageDir);
+        }
+
+        // Verify migration
+        assertEquals(2, summary.getSuccessful());
+        assertEquals(0, summary.getFailed());
+        assertEquals(0, summary.getSkipped());
+        assertEquals(smallContent, downloadObject(smallOid));
+        assertEquals(largeContent, downloadObject(largeOid));
+
+        // Download both objects again into an empty home directory, ignoring a key which is not an LFS object
+        s3Client.putObject(PutObjectRequest.builder()
+                        .bucket(TEST_BUCKET)
+                        .key("git-lfs/" + TEST_HIERARCHY + "/notes.txt")
+                        .build(),
+                RequestBody.fromString("unexpected"));
+        Path downloadDir = tmpFolder.newFolder().toPath().resolve(LFS_DIR);
+        try (S3TransferManager s3TransferManager = new S3TransferManager(config)) {
+            summary = s3TransferManager.download(downloadDir);
+        }
+        assertEquals(2, summary.getSuccessful());
+        assertEquals(0, summary.getFailed());
+        assertEquals(1, summary.getIgnored());
+        assertEquals(largeContent, Files.readString(toObjectPath(downloadDir, largeOid)));
+    }
+
+    @Test
+    public void testMigrationVerifiesLocalObjects() throws IOException {
+        Path homeDir = tmpFolder.newFolder().toPath();
+        Path configFile = writeConfigFile(homeDir,
+                "verify-local=true",
+                "digest-cache.file=" + homeDir.resolve("digests.bin"));
+        Path storageDir = homeDir.resolve(LFS_DIR);
+
+        // The corrupted object is already in the bucket, so it is only found by checking skipped objects
+        String uploadedOid = writeObject(storageDir, UUID.randomUUID().toString());
+        String corruptedOid = DigestUtils.sha256Hex("original");
+        Path corruptedPath = toObjectPath(storageDir, corruptedOid);
+        Files.createDirectories(corruptedPath.getParent());
+        Files.writeString(corruptedPath, "corrupted");
+        s3Client.putObject(PutObjectRequest.builder().bucket(TEST_BUCKET).key(toObjectKey(corruptedOid)).build(),
+                RequestBody.fromString("original"));
+
+        AppConfiguration config = new AppConfiguration(configFile.toString());
+        TransferSummary summary;
+        try (S3TransferManager s3TransferManager = new S3TransferManager(config)) {
+            summary = s3TransferManager.upload(storageDir);
+        }
+        assertEquals(1, summary.getSuccessful());
+        assertEquals(0, summary.getSkipped());
+        assertEquals(1, summary.getFailed());
+        assertTrue(objectExists(uploadedOid));
+
+        // The uploaded object is now in the bucket and still verified, and the corrupted one still fails
+        try (S3TransferManager s3TransferManager = new S3TransferManager(config)) {
+            summary = s3TransferManager.upload(storageDir);
+        }
+        assertEquals(0, summary.getSuccessful());
+        assertEquals(1, summary.getSkipped());
+        assertEquals(1, summary.getFailed());
+    }
+
+    @Test
+    public void testCopyMigration() throws IOException {
+        createBucket(TEST_TARGET_BUCKET);
+        Path homeDir = tmpFolder.newFolder().toPath();
+        Path configFile = writeConfigFile(homeDir,
+                "copy-migration=true",
+                "target.s3.bucket=" + TEST_TARGET_BUCKET);
+
+        String content = UUID.randomUUID().toString();
+        String oid = DigestUtils.sha256Hex(content);
+        s3Client.putObject(PutObjectRequest.builder()
+                        .bucket(TEST_BUCKET)
+                        .key(toObjectKey(oid))
+                        .build(),
+                RequestBody.fromString(content));
+        // Keys which are not LFS objects are not copied
+        String unexpectedKey = "git-lfs/" + TEST_HIERARCHY + "/notes.txt";
+        s3Client.putObject(PutObjectRequest.builder().bucket(TEST_BUCKET).key(unexpectedKey).build(),
+                RequestBody.fromString("unexpected"));
+
+        // Perform copy
+        AppConfiguration config = new AppConfiguration(configFile.toString());
+        TransferSummary summary;
+        try (S3TransferManager s3TransferManager = new S3TransferManager(config)) {
+            summary = s3TransferManager.copy();
+        }
+
+        // Verify copy
+        assertEquals(1, summary.getSuccessful());
+        assertEquals(0, summary.getFailed());
+        assertEquals(0, summary.getSkipped());
+        assertEquals(1, summary.getIgnored());
+        assertEquals(content, downloadObject(TEST_TARGET_BUCKET, oid));
+        assertFalse(keyExists(TEST_TARGET_BUCKET, unexpectedKey));
+
+        // A second copy skips the object which is already present
+        try (S3TransferManager s3TransferManager = new S3TransferManager(config)) {
+            summary = s3TransferManager.copy();
+        }
+        assertEquals(0, summary.getSuccessful());
+        assertEquals(1, summary.getSkipped());
+    }
+
+    @Test
+    public void testUploadToReplicas() throws IOException {
+        createBucket(TEST_TARGET_BUCKET);
+        Path homeDir = tmpFolder.newFolder().toPath();
+        Path configFile = writeConfigFile(homeDir,
+                "replicas=dr",
+                "replica.dr.s3.bucket=" + TEST_TARGET_BUCKET,
+                "multipart.part-size=" + 5 * 1024 * 1024);
+        Path storageDir = homeDir.resolve(LFS_DIR);
+
+        // The small object is already in the primary bucket and the large one is uploaded in parts
+        String smallContent = UUID.randomUUID().toString();
+        String smallOid = writeObject(storageDir, smallContent);
+        String largeContent = UUID.randomUUID() + "x".repeat(6 * 1024 * 1024);
+        String largeOid = writeObject(storageDir, largeContent);
+        s3Client.putObject(PutObjectRequest.builder().bucket(TEST_BUCKET).key(toObjectKey(smallOid)).build(),
+                RequestBody.fromString(smallContent));
+
+        // Perform migration
+        AppConfiguration config = new AppConfiguration(configFile.toString());
+        Map<String, TransferSummary> summaries;
+        try (S3TransferManager s3TransferManager = new S3TransferManager(config)) {
+            summaries = s3TransferManager.uploadToReplicas(storageDir);
+        }
+
+        // Verify migration
+        TransferSummary primarySummary = summaries.get(S3TransferManager.PRIMARY_DESTINATION);
+        assertEquals(1, primarySummary.getSuccessful());
+        assertEquals(1, primarySummary.getSkipped());
+        assertEquals(0, primarySummary.getFailed());
+        TransferSummary replicaSummary = summaries.get("dr");
+        assertEquals(2, replicaSummary.getSuccessful());
+        assertEquals(0, replicaSummary.getSkipped());
+        assertEquals(0, replicaSummary.getFailed());
+        assertEquals(largeContent, downloadObject(largeOid));
+        assertEquals(smallContent, downloadObject(TEST_TARGET_BUCKET, smallOid));
+        assertEquals(largeContent, downloadObject(TEST_TARGET_BUCKET, largeOid));
+    }
+
+    @Test
+    public void testPrune() throws IOException {
+        Path homeDir = tmpFolder.newFolder().toPath();
+        Path configFile = writeConfigFile(homeDir,
+                "prune=true",
+                "prune.dry-run=false");
+        Path storageDir = homeDir.resolve(LFS_DIR);
+
+        // Only the first object is present in the embedded LFS object store
+        String keptOid = writeObject(storageDir, UUID.randomUUID().toString());
+        String orphanedOid = DigestUtils.sha256Hex(UUID.randomUUID().toString());
+        s3Client.putObject(PutObjectRequest.builder().bucket(TEST_BUCKET).key(toObjectKey(keptOid)).build(),
+                RequestBody.fromString("kept"));
+        s3Client.putObject(PutObjectRequest.builder().bucket(TEST_BUCKET).key(toObjectKey(orphanedOid)).build(),
+                RequestBody.fromString("orphaned"));
+        // Keys which were not written by Bitbucket are left alone
+        String unexpectedKey = "git-lfs/" + TEST_HIERARCHY + "/notes.txt";
+        String unexpectedPrefixKey = "git-lfs/backup/" + orphanedOid;
+        s3Client.putObject(PutObjectRequest.builder().bucket(TEST_BUCKET).key(unexpectedKey).build(),
+                RequestBody.fromString("unexpected"));
+        s3Client.putObject(PutObjectRequest.builder().bucket(TEST_BUCKET).key(unexpectedPrefixKey).build(),
+                RequestBody.fromString("unexpected"));
+
+        // Perform prune
+        AppConfiguration config = new AppConfiguration(configFile.toString());
+        PruneSummary summary;
+        try (S3TransferManager s3TransferManager = new S3TransferManager(config)) {
+            summary = s3TransferManager.prune(storageDir, config.isPruneDryRun(), null);
+        }
+
+        // Verify prune
+        assertEquals(1, summary.getKept());
+        assertEquals(1, summary.getDeleted());
+        assertEquals(0, summary.getFailed());
+        assertEquals(1, summary.getIgnored());
+        assertTrue(objectExists(keptOid));
+        assertFalse(objectExists(orphanedOid));
+        assertTrue(keyExists(unexpectedKey));
+        assertTrue(keyExists(unexpectedPrefixKey));
+    }
+
+    @Test
+    public void testCalibration() throws IOException {
+        Path homeDir = tmpFolder.newFolder().toPath();
+        Path configFile = writeConfigFile(homeDir,
+                "calibrate=true",
+                "calibrate.max-threads=2");
+
+        // Perform calibration
+        AppConfiguration config = new AppConfiguration(configFile.toString());
+        Properties recommended;
+        try (S3TransferManager s3TransferManager = new S3TransferManager(config)) {
+            recommended = s3TransferManager.calibrate(config.getCalibrateMaxThreads());
+        }
+
+        // Verify calibration
+        int threads = Integer.parseInt(recommended.getProperty("threads"));
+        assertTrue(threads == 1 || threads == 2);
+        assertEquals(String.valueOf(threads), recommended.getProperty("max-connections"));
+        long partSize = Long.parseLong(recommended.getProperty("multipart.part-size"));
+        assertTrue(Set.of(5L, 8L, 16L, 32L).contains(partSize / (1024 * 1024)));
+        assertEquals(0, partSize % (1024 * 1024));
+        // The scratch objects are deleted once the run finishes
+        assertTrue(s3Client.listObjectsV2(ListObjectsV2Request.builder()
+                        .bucket(TEST_BUCKET)
+                        .prefix("git-lfs-calibration/")
+                        .build())
+                .contents()
+                .isEmpty());
+    }
+
     private boolean bucketExists(String bucket) {
         ListBucketsRequest request = ListBucketsRequest.builder().build();
         ListBucketsResponse response = s3Client.listBuckets(request);
@@ -107,7 +353,7 @@ public class LocalStackIntegrationTest {
         }
         CreateBucketResponse response = s3Client.createBucket(
                 CreateBucketRequest.builder()
-                        .bucket(TEST_BUCKET)
+                        .bucket(bucket)
                         .build());
 
         if (!response.sdkHttpResponse().isSuccessful()) {
@@ -116,8 +362,12 @@ public class LocalStackIntegrationTest {
     }
 
     private String downloadObject(String oid) {
+        return downloadObject(TEST_BUCKET, oid);
+    }
+
+    private String downloadObject(String bucket, String oid) {
         GetObjectRequest request = GetObjectRequest.builder()
-                .bucket(TEST_BUCKET)
+                .bucket(bucket)
                 .key(toObjectKey(oid))
                 .build();
 
@@ -128,6 +378,26 @@ public class LocalStackIntegrationTest {
         }
     }
 
+    private boolean objectExists(String oid) {
+        return keyExists(toObjectKey(oid));
+    }
+
+    private boolean keyExists(String key) {
+        return keyExists(TEST_BUCKET, key);
+    }
+
+    private boolean keyExists(String bucket, String key) {
+        try {
+            s3Client.headObject(HeadObjectRequest.builder()
+                    .bucket(bucket)
+                    .key(key)
+                    .build());
+            return true;
+        } catch (NoSuchKeyException e) {
+            return false;
+        }
+    }
+
     private Path toObjectPath(Path storageDir, String oid) {
         return storageDir
                 .resolve(TEST_HIERARCHY)
@@ -139,7 +409,7 @@ public class LocalStackIntegrationTest {
         return "git-lfs/" + TEST_HIERARCHY + "/" + oid.substring(0, 2) + "/" + oid.substring(2);
     }
 
-    private Path writeConfigFile(Path homeDir) throws IOException {
+    private Path writeConfigFile(Path homeDir, String... extraProperties) throws IOException {
         Path configFile = homeDir.resolve(TEST_CONFIG_FILENAME);
         try (Writer writer = new OutputStreamWriter(Files.newOutputStream(configFile))) {
             writer.write("bitbucket.home=" + homeDir + "\n");
@@ -148,6 +418,9 @@ public class LocalStackIntegrationTest {
             writer.write("s3.access-key=" + localstack.getAccessKey() + "\n");
             writer.write("s3.secret-key=" + localstack.getSecretKey() + "\n");
             writer.write("s3.endpoint-override=" + localstack.getEndpointOverride(S3) + "\n");
+            for (String property : extraProperties) {
+                writer.write(property + "\n");
+            }
         }
 
         return configFile;